@@ -3,12 +3,11 @@ package io.jenkins.plugins.twofactor.constants;
 import hudson.util.Secret;
 
 public class MoGlobalConfigConstant {
-  public enum AdminConfiguration {
-    ENABLE_2FA_FOR_ALL_USERS(Secret.fromString("ENABLE_MO_TFA_AUTHENTICATION"));
-
+  public enum UtilityGlobalConstants {
+    SESSION_2FA_VERIFICATION(Secret.fromString("_SESSION_2FA_VERIFICATION"));
     private final Secret key;
 
-    AdminConfiguration(Secret setting) {
+    UtilityGlobalConstants(Secret setting) {
       this.key = setting;
     }
 
@@ -17,16 +16,40 @@ public class MoGlobalConfigConstant {
     }
   }
 
-  public enum UtilityGlobalConstants {
-    SESSION_2FA_VERIFICATION(Secret.fromString("_SESSION_2FA_VERIFICATION"));
-    private final Secret key;
+  public enum StatelessClientPolicy {
+    API_TOKEN_ONLY("Skip 2FA for requests authenticated with an API token"),
+    ANY_BASIC_AUTH("Skip 2FA for requests authenticated with an API token or password (basic auth)"),
+    DISABLED("Treat scripted clients like browsers");
 
-    UtilityGlobalConstants(Secret setting) {
-      this.key = setting;
+    private final String description;
+
+    StatelessClientPolicy(String description) {
+      this.description = description;
     }
 
-    public String getKey() {
-      return key.getPlainText();
+    public String getDescription() {
+      return description;
+    }
+  }
+
+  public enum QrCodeFormat {
+    SVG("SVG (rendered without AWT)", "image/svg+xml"),
+    PNG("PNG", "image/png");
+
+    private final String description;
+    private final String contentType;
+
+    QrCodeFormat(String description, String contentType) {
+      this.description = description;
+      this.contentType = contentType;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    public String getContentType() {
+      return contentType;
     }
   }
 
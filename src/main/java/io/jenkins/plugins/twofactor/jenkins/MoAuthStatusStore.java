@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Remembers which users completed 2FA in their most recent session. Only verified users are
+ * stored: an unverified status is the same as no entry, so marking a user unverified removes
+ * them. Entries are dropped after they have not been read for the idle timeout, and the oldest
+ * ones are dropped when the store grows past its size bound.
+ */
+public final class MoAuthStatusStore {
+  private static final Logger LOGGER = Logger.getLogger(MoAuthStatusStore.class.getName());
+  // Access times are refreshed at most once per second to keep reads from writing on every request
+  private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final int maxEntries;
+  private final long idleTimeoutMillis;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public MoAuthStatusStore(int maxEntries, long idleTimeout, TimeUnit unit) {
+    this.maxEntries = maxEntries;
+    this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+  }
+
+  /**
+   * @return true if the user completed 2FA in their most recent session
+   */
+  public boolean isAuthenticated(String userId) {
+    Entry entry = entries.get(userId);
+    if (entry == null) {
+      misses.increment();
+      return false;
+    }
+    hits.increment();
+    entry.touch(System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * Record the 2FA status of a user. The map is only written when the status changes.
+   */
+  public void update(String userId, boolean authenticated) {
+    if (!authenticated) {
+      remove(userId);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    Entry entry = entries.get(userId);
+    if (entry != null) {
+      entry.touch(now);
+      return;
+    }
+
+    entries.put(userId, new Entry(now));
+    if (entries.size() > maxEntries) {
+      evict(now);
+    }
+  }
+
+  public boolean remove(String userId) {
+    return entries.remove(userId) != null;
+  }
+
+  /**
+   * Drop entries that have not been read for the idle timeout.
+   * @return the number of entries dropped
+   */
+  public int evictExpired() {
+    return evictIdle(System.currentTimeMillis());
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the fraction of lookups that found a verified user, 0 when nothing was looked up
+   */
+  public double getHitRate() {
+    long hitCount = hits.sum();
+    long total = hitCount + misses.sum();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  private int evictIdle(long now) {
+    int removed = 0;
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (now - entry.getValue().lastAccess > idleTimeoutMillis
+          && entries.remove(entry.getKey(), entry.getValue())) {
+        removed++;
+      }
+    }
+    evictions.add(removed);
+    return removed;
+  }
+
+  // Called when the size bound is exceeded: first drop idle entries, then the least recently
+  // used ones until the store is back to 90% of its bound so that the next insert does not
+  // trigger another scan.
+  private void evict(long now) {
+    evictIdle(now);
+    int target = maxEntries - maxEntries / 10;
+    int excess = entries.size() - target;
+    if (excess <= 0) {
+      return;
+    }
+
+    // Access times are copied first so that concurrent reads cannot reorder the sort
+    List<Candidate> candidates = new ArrayList<>(entries.size());
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+    }
+    candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+    int removed = 0;
+    for (int i = 0; i < candidates.size() && removed < excess; i++) {
+      Candidate candidate = candidates.get(i);
+      if (entries.remove(candidate.userId, candidate.entry)) {
+        removed++;
+      }
+    }
+    evictions.add(removed);
+    LOGGER.fine("2FA status store exceeded " + maxEntries + " entries, evicted " + removed);
+  }
+
+  private static final class Candidate {
+    private final String userId;
+    private final Entry entry;
+    private final long lastAccess;
+
+    private Candidate(String userId, Entry entry) {
+      this.userId = userId;
+      this.entry = entry;
+      this.lastAccess = entry.lastAccess;
+    }
+  }
+
+  private static final class Entry {
+    private volatile long lastAccess;
+
+    private Entry(long lastAccess) {
+      this.lastAccess = lastAccess;
+    }
+
+    private void touch(long now) {
+      if (now - lastAccess > TOUCH_INTERVAL_MILLIS) {
+        lastAccess = now;
+      }
+    }
+  }
+}
@@ -25,15 +25,24 @@ import hudson.Extension;
 import hudson.init.Initializer;
 import hudson.model.User;
 import hudson.model.UserProperty;
+import hudson.security.ACL;
 import hudson.util.PluginServletFilter;
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.StatelessClientPolicy;
 import io.jenkins.plugins.twofactor.constants.MoPluginUrls;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoOtpOverEmailConfig;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoSecurityQuestionConfig;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import io.jenkins.plugins.twofactor.jenkins.util.MoUrlExemptionMatcher;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -44,27 +53,41 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import jenkins.model.Jenkins;
+import jenkins.security.ApiTokenProperty;
+import jenkins.util.SystemProperties;
+import org.springframework.security.core.Authentication;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdminConfiguration.ENABLE_2FA_FOR_ALL_USERS;
 import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.UtilityGlobalConstants.SESSION_2FA_VERIFICATION;
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.*;
 
 @Extension
 public class MoFilter implements Filter {
-  public static final Map<String, Boolean> userAuthenticationStatus = new ConcurrentHashMap<>();
-  public static final Map<String, Boolean> moPluginSettings = new ConcurrentHashMap<>();
+  public static final MoAuthStatusStore userAuthenticationStatus =
+      new MoAuthStatusStore(
+          SystemProperties.getInteger(MoAuthStatusStore.class.getName() + ".maxEntries", 10000),
+          SystemProperties.getLong(MoAuthStatusStore.class.getName() + ".idleTimeoutMinutes", 60L),
+          TimeUnit.MINUTES);
   private static final Logger LOGGER = Logger.getLogger(MoFilter.class.getName());
+  private static final String BASIC_AUTH_PREFIX = "Basic ";
+  private static final String SPRING_SECURITY_CONTEXT_KEY = "SPRING_SECURITY_CONTEXT";
+  // Legacy API tokens are 32 hex characters, current ones carry a two digit version prefix
+  private static final Pattern API_TOKEN_PATTERN = Pattern.compile("(11)?[0-9a-f]{32}");
+  private static final int MAX_VERIFIED_API_TOKENS =
+      SystemProperties.getInteger(MoFilter.class.getName() + ".maxVerifiedApiTokens", 10000);
+  private static final long VERIFIED_API_TOKEN_TTL_MILLIS =
+      TimeUnit.MINUTES.toMillis(
+          SystemProperties.getLong(MoFilter.class.getName() + ".verifiedApiTokenMinutes", 5L));
+  // Fingerprints of user and API token pairs that were checked against the user's tokens
+  private static final Map<String, Long> verifiedApiTokens = new ConcurrentHashMap<>();
+  // Fingerprints are computed on every stateless request, so each thread keeps its digest
+  private static final ThreadLocal<MessageDigest> fingerprintDigest =
+      ThreadLocal.withInitial(MoFilter::newFingerprintDigest);
+  private static final int MAX_SESSION_VERIFICATION_KEYS =
+      SystemProperties.getInteger(MoFilter.class.getName() + ".maxSessionVerificationKeys", 10000);
+  private static final Map<String, String> sessionVerificationKeys = new ConcurrentHashMap<>();
+
   @Override
-  public void init(FilterConfig filterConfig) {
-    try {
-      moPluginSettings.put(ENABLE_2FA_FOR_ALL_USERS.getKey(),
-          MoGlobalConfig.get().getEnableTfa());
-    } catch (Exception e) {
-      LOGGER.fine(
-          "Exception while initializing filter for global TFA authentication, error is "
-              + e.getMessage());
-    }
-  }
+  public void init(FilterConfig filterConfig) {}
 
   @SuppressWarnings("unused")
   @Initializer
@@ -73,16 +96,37 @@ public class MoFilter implements Filter {
     PluginServletFilter.addFilter(new MoFilter());
   }
 
+  /**
+   * Get the session attribute that marks a user as 2FA verified. The key is built once per user
+   * and reused, so checking an already verified session does not allocate a new string.
+   */
+  public static String getSessionVerificationKey(String userId) {
+    String key = sessionVerificationKeys.get(userId);
+    if (key == null) {
+      if (sessionVerificationKeys.size() >= MAX_SESSION_VERIFICATION_KEYS) {
+        sessionVerificationKeys.clear();
+      }
+      key = userId + SESSION_2FA_VERIFICATION.getKey();
+      sessionVerificationKeys.put(userId, key);
+    }
+    return key;
+  }
+
   private String getRedirectUrlForTfaAuthentication(User user) {
+    return MoTfaRedirectCache.get(user, this::computeRedirectDecision).getRedirectUrl();
+  }
+
+  private MoTfaRedirectCache.Decision computeRedirectDecision(User user) {
 
     LOGGER.fine(" Calculating redirection url for 2FA authentication");
+    MoTfaPolicySnapshot policy = MoTfaPolicySnapshot.current();
     String redirectUrl = null;
     int totalConfiguredMethods = 0;
     int totalEnabledMethods = 0;
     for (UserProperty property : user.getAllProperties()) {
       switch (property.getClass().getSimpleName()) {
         case "MoSecurityQuestionConfig":
-          if (MoGlobalConfig.get().isEnableSecurityQuestionsAuthentication()) {
+          if (policy.isEnableSecurityQuestionsAuthentication()) {
             totalEnabledMethods++;
             if (((MoSecurityQuestionConfig) property).isConfigured()) {
               redirectUrl =
@@ -95,7 +139,7 @@ public class MoFilter implements Filter {
           }
           break;
         case "MoOtpOverEmailConfig":
-          if (MoGlobalConfig.get().isEnableOtpOverEmailAuthentication()) {
+          if (policy.isEnableOtpOverEmailAuthentication()) {
             totalEnabledMethods++;
             if (((MoOtpOverEmailConfig) property).isConfigured()) {
               redirectUrl =
@@ -109,7 +153,7 @@ public class MoFilter implements Filter {
           }
           break;
         case "MoTotpConfig":
-          if (MoGlobalConfig.get().isEnableTotpAuthentication()) {
+          if (policy.isEnableTotpAuthentication()) {
             totalEnabledMethods++;
             if (((MoTotpConfig) property).isConfigured()) {
               redirectUrl =
@@ -140,8 +184,10 @@ public class MoFilter implements Filter {
       redirectUrl = "SKIP_FILTER";
     }
 
-    LOGGER.fine("Redirecting to url " + redirectUrl);
-    return redirectUrl;
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Redirecting to url " + redirectUrl);
+    }
+    return new MoTfaRedirectCache.Decision(redirectUrl, totalEnabledMethods, totalConfiguredMethods);
   }
 
   private String sanitizeRequestURI(String requestURI) {
@@ -149,68 +195,63 @@ public class MoFilter implements Filter {
     return requestURI;
   }
 
-  private boolean urlsToAvoidRedirect(String url, List<String> urlsToCheck) {
-    for (String avoidUrl : urlsToCheck) {
-      if (url.contains(avoidUrl)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private boolean JenkinsUrlsToAvoidRedirect(String url) {
-    List<String> jenkinsUrls =
-            Arrays.asList(
-                    "/logout",
-                    "/login",
-                    "/adjuncts",
-                    "/static",
-                    ".css",
-                    ".js",
-                    "PopupContent",
-                    "/ajaxBuildQueue",
-                    "/ajaxExecutors",
-                    "/descriptorByName",
-                    "/checkPluginUrl",
-                    "/log",
-                    "/theme-dark",
-                    "/resourceBundle",
-                    "/favicon.ico"
-            );
-    return urlsToAvoidRedirect(url, jenkinsUrls);
-  }
-
-  private boolean tfaPluginUrlsToAvoidRedirect(String url) {
-    List<String> tfaPluginUrls =
-        Arrays.asList(
-            MO_USER_CONFIG.getUrl() + "/",
-            MO_SECURITY_QUESTION_CONFIG.getUrl(),
-            "/miniorange-two-factor",
-            MoPluginUrls.Urls.MO_OTP_OVER_EMAIL_CONFIG.getUrl(),
-            MoPluginUrls.Urls.MO_TOTP_CONFIG.getUrl(),
-            MO_USER_AUTH.getUrl() + "/");
-    return urlsToAvoidRedirect(url, tfaPluginUrls);
-  }
-
-  // TODO: 18-07-2024 add this in premium 
-  private boolean RestUrlsToAvoid(String url){
-    List<String> restUrls =
-            Arrays.asList(
-                    "/createItem",
-                    "/createView",
-                    "/queue",
-                    "/overallLoad",
-                    "/quietDown",
-                    "/cancelQuietDown",
-                    "/restart",
-                    "/safeRestart",
-                    "/api/json"
-            );
-    return urlsToAvoidRedirect(url,restUrls);
+  private static final List<String> JENKINS_URLS_TO_AVOID_REDIRECT =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              "/logout",
+              "/login",
+              "/adjuncts",
+              "/static",
+              ".css",
+              ".js",
+              "PopupContent",
+              "/ajaxBuildQueue",
+              "/ajaxExecutors",
+              "/descriptorByName",
+              "/checkPluginUrl",
+              "/log",
+              "/theme-dark",
+              "/resourceBundle",
+              "/favicon.ico"));
+
+  private static final List<String> TFA_PLUGIN_URLS_TO_AVOID_REDIRECT =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              MO_USER_CONFIG.getUrl() + "/",
+              MO_SECURITY_QUESTION_CONFIG.getUrl(),
+              "/miniorange-two-factor",
+              MoPluginUrls.Urls.MO_OTP_OVER_EMAIL_CONFIG.getUrl(),
+              MoPluginUrls.Urls.MO_TOTP_CONFIG.getUrl(),
+              MO_USER_AUTH.getUrl() + "/"));
+
+  // TODO: 18-07-2024 add this in premium
+  private static final List<String> REST_URLS_TO_AVOID =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              "/createItem",
+              "/createView",
+              "/queue",
+              "/overallLoad",
+              "/quietDown",
+              "/cancelQuietDown",
+              "/restart",
+              "/safeRestart",
+              "/api/json"));
+
+  /**
+   * Compile the built-in URL exemptions plus the admin configured ones into a single matcher.
+   * Called whenever a new {@link MoTfaPolicySnapshot} is published.
+   */
+  static MoUrlExemptionMatcher compileUrlExemptions(List<String> customExemptUrls) {
+    List<String> exemptUrls = new ArrayList<>(JENKINS_URLS_TO_AVOID_REDIRECT);
+    exemptUrls.addAll(TFA_PLUGIN_URLS_TO_AVOID_REDIRECT);
+    exemptUrls.addAll(REST_URLS_TO_AVOID);
+    exemptUrls.addAll(customExemptUrls);
+    return MoUrlExemptionMatcher.compile(exemptUrls);
   }
 
   private static boolean enableTfaForAllUsers() {
-    return moPluginSettings.getOrDefault(ENABLE_2FA_FOR_ALL_USERS.getKey(), false);
+    return MoTfaPolicySnapshot.current().isEnableTfa();
   }
 
   static boolean isTfaEnabled() {
@@ -222,40 +263,38 @@ public class MoFilter implements Filter {
 
   private boolean isTfaVerifiedSession(HttpSession session, User user) {
     try {
-      String sessionAttributeKey = user.getId() + SESSION_2FA_VERIFICATION.getKey();
-      Object tfaVerificationAttribute = session.getAttribute(sessionAttributeKey);
+      if (session == null) {
+        userAuthenticationStatus.update(user.getId(), false);
+        return false;
+      }
+
+      Object tfaVerificationAttribute =
+          session.getAttribute(getSessionVerificationKey(user.getId()));
 
       if (tfaVerificationAttribute != null) {
         boolean isTfaVerifiedSession = Boolean.parseBoolean(tfaVerificationAttribute.toString());
-        userAuthenticationStatus.put(user.getId(), isTfaVerifiedSession);
+        userAuthenticationStatus.update(user.getId(), isTfaVerifiedSession);
         return isTfaVerifiedSession;
       }
 
-      userAuthenticationStatus.put(user.getId(), false);
+      userAuthenticationStatus.update(user.getId(), false);
       return false;
     } catch (Exception e) {
-      String errorMessage = "An error occurred while fetching session: " + e.getMessage();
-      LOGGER.fine(errorMessage);
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("An error occurred while fetching session: " + e.getMessage());
+      }
       return false;
     }
   }
 
   private boolean byPass2FA(User user, String url, HttpSession session) {
       //[2023-08-11] Added bypass users list
-      List<String> bypassUsers = Optional.ofNullable(MoGlobalConfig.get().getBypassUsersList())
-              .orElse(Collections.emptyList());
-
-      String userId = Optional.ofNullable(user)
-              .map(User::getId)
-              .orElse(null);
-
-      if (userId == null) {
+      if (user == null) {
           return false;
       }
 
-      boolean isBypass = bypassUsers.stream()
-              .filter(Objects::nonNull)
-              .anyMatch(u -> u.equalsIgnoreCase(userId));
+      MoTfaPolicySnapshot policy = MoTfaPolicySnapshot.current();
+      boolean isBypass = policy.isBypassUser(user.getId());
 
     if(isBypass) {
       return true;
@@ -269,21 +308,158 @@ public class MoFilter implements Filter {
       return true;
     }
 
-    if (tfaPluginUrlsToAvoidRedirect(url) || JenkinsUrlsToAvoidRedirect(url) || RestUrlsToAvoid(url)){
+    if (policy.isExemptUrl(url)) {
       return true;
     }
 
     return false;
   }
 
+  /**
+   * Scripted clients (CLI over HTTP, REST calls, webhooks) send their credentials in a basic
+   * Authorization header on every request and are authenticated by Jenkins without a session.
+   * They cannot complete a 2FA challenge, so depending on the configured policy they are let
+   * through without creating or reading an HTTP session.
+   */
+  private boolean isStatelessClient(
+      HttpServletRequest req, User user, StatelessClientPolicy policy) {
+    if (policy == StatelessClientPolicy.DISABLED) {
+      return false;
+    }
+
+    String authorization = req.getHeader("Authorization");
+    if (authorization == null || !authorization.regionMatches(true, 0, BASIC_AUTH_PREFIX, 0, BASIC_AUTH_PREFIX.length())) {
+      return false;
+    }
+
+    // A browser that logged in interactively keeps its security context in the session; only
+    // requests whose authentication came from the header itself are treated as stateless.
+    HttpSession session = req.getSession(false);
+    if (session != null && session.getAttribute(SPRING_SECURITY_CONTEXT_KEY) != null) {
+      return false;
+    }
+
+    String credentials;
+    try {
+      credentials =
+          new String(
+              Base64.getDecoder().decode(authorization.substring(BASIC_AUTH_PREFIX.length()).trim()),
+              StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+
+    int separator = credentials.indexOf(':');
+    if (separator < 0 || !User.idStrategy().equals(user.getId(), credentials.substring(0, separator))) {
+      return false;
+    }
+
+    if (policy == StatelessClientPolicy.ANY_BASIC_AUTH) {
+      return true;
+    }
+    return isApiToken(user, credentials.substring(separator + 1));
+  }
+
+  /**
+   * Check that a basic auth password is one of the user's API tokens, not merely something
+   * shaped like one. {@link ApiTokenProperty#matchesPassword} also records the token usage, so a
+   * match is remembered for a few minutes by a fingerprint of the user and token.
+   */
+  private static boolean isApiToken(User user, String password) {
+    if (!API_TOKEN_PATTERN.matcher(password).matches()) {
+      return false;
+    }
+
+    String fingerprint = fingerprint(user.getId(), password);
+    long now = System.currentTimeMillis();
+    Long verifiedUntil = verifiedApiTokens.get(fingerprint);
+    if (verifiedUntil != null && verifiedUntil > now) {
+      return true;
+    }
+
+    ApiTokenProperty apiTokens = user.getProperty(ApiTokenProperty.class);
+    if (apiTokens == null || !apiTokens.matchesPassword(password)) {
+      verifiedApiTokens.remove(fingerprint);
+      return false;
+    }
+    if (verifiedApiTokens.size() >= MAX_VERIFIED_API_TOKENS) {
+      evictExpiredApiTokens();
+    }
+    verifiedApiTokens.put(fingerprint, now + VERIFIED_API_TOKEN_TTL_MILLIS);
+    return true;
+  }
+
+  private static String fingerprint(String userId, String password) {
+    // digest() resets the digest for the next use on this thread
+    MessageDigest digest = fingerprintDigest.get();
+    digest.update(userId.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(password.getBytes(StandardCharsets.UTF_8));
+    return Base64.getEncoder().encodeToString(digest.digest());
+  }
+
+  private static MessageDigest newFingerprintDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Drop API token verifications that have expired, or all of them if none has and the table is
+   * full.
+   * @return the number of verifications dropped
+   */
+  static int evictExpiredApiTokens() {
+    long now = System.currentTimeMillis();
+    int removed = 0;
+    for (Map.Entry<String, Long> entry : verifiedApiTokens.entrySet()) {
+      if (entry.getValue() <= now && verifiedApiTokens.remove(entry.getKey(), entry.getValue())) {
+        removed++;
+      }
+    }
+    if (removed == 0 && verifiedApiTokens.size() >= MAX_VERIFIED_API_TOKENS) {
+      removed = verifiedApiTokens.size();
+      verifiedApiTokens.clear();
+    }
+    return removed;
+  }
+
+  /**
+   * Anonymous and SYSTEM requests never go through 2FA. Checking this up front keeps them away
+   * from the user, session and redirect lookups below.
+   */
+  private static boolean isAnonymousOrSystem(Authentication authentication) {
+    return authentication == null
+        || ACL.isAnonymous2(authentication)
+        || ACL.SYSTEM_USERNAME.equals(authentication.getName());
+  }
+
   @Override
   public void doFilter(
       ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain)
       throws IOException, ServletException {
+    Authentication authentication = Jenkins.getAuthentication2();
+    if (isAnonymousOrSystem(authentication)) {
+      filterChain.doFilter(servletRequest, servletResponse);
+      return;
+    }
+
     try {
       HttpServletRequest req = (HttpServletRequest) servletRequest;
-      User user = User.current();
-      HttpSession session = req.getSession();
+      User user = User.get2(authentication);
+      if (user == null) {
+        filterChain.doFilter(servletRequest, servletResponse);
+        return;
+      }
+
+      if (isStatelessClient(req, user, MoTfaPolicySnapshot.current().getStatelessClientPolicy())) {
+        filterChain.doFilter(servletRequest, servletResponse);
+        return;
+      }
+
+      HttpSession session = req.getSession(false);
 
       if (byPass2FA(user, req.getPathInfo(),session)) {
         filterChain.doFilter(servletRequest, servletResponse);
@@ -292,7 +468,9 @@ public class MoFilter implements Filter {
 
       String redirectUrl = getRedirectUrlForTfaAuthentication(user);
 
-      LOGGER.fine("Authentication method url " + redirectUrl);
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Authentication method url " + redirectUrl);
+      }
 
       if (redirectUrl.equals("SKIP_FILTER")) {
         filterChain.doFilter(servletRequest, servletResponse);
@@ -301,20 +479,26 @@ public class MoFilter implements Filter {
 
       HttpServletResponse rsp = (HttpServletResponse) servletResponse;
       String relayState = req.getRequestURI();
+      session = req.getSession();
+      MoTfaSessionListener.register(user.getId(), session.getId());
 
       if (session.getAttribute("tfaRelayState") == null) {
         session.setAttribute("tfaRelayState", sanitizeRequestURI(relayState));
       }
 
-      LOGGER.fine(
-          req.getRequestURI()
-              + " is being redirecting for 2FA, saved relay state is "
-              + relayState);
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine(
+            req.getRequestURI()
+                + " is being redirecting for 2FA, saved relay state is "
+                + relayState);
+      }
 
       rsp.sendRedirect(Jenkins.get().getRootUrl() + redirectUrl);
     } catch (Exception e) {
       filterChain.doFilter(servletRequest, servletResponse);
-      LOGGER.fine("Error in filter processing " + e.getMessage());
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Error in filter processing " + e.getMessage());
+      }
     }
   }
 
@@ -21,13 +21,13 @@
  */
 package io.jenkins.plugins.twofactor.jenkins;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdminConfiguration.ENABLE_2FA_FOR_ALL_USERS;
 import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdvanceSettingsConstants.DEFAULT_OTP_EMAIL_SUBJECT;
 import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdvanceSettingsConstants.DEFAULT_OTP_EMAIL_TEMPLATE;
-import static io.jenkins.plugins.twofactor.jenkins.MoFilter.moPluginSettings;
 
 import hudson.Extension;
 import hudson.XmlFile;
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.QrCodeFormat;
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.StatelessClientPolicy;
 import io.jenkins.plugins.twofactor.jenkins.dto.MoAdvanceSettingsDTO;
 import io.jenkins.plugins.twofactor.jenkins.dto.MoOtpOverEmailDto;
 import java.io.File;
@@ -52,17 +52,35 @@ public class MoGlobalConfig extends GlobalConfiguration {
   private MoOtpOverEmailDto otpOverEmailDto;
   private MoAdvanceSettingsDTO moAdvancedSettingsDTO;
   private String bypassUsers;
-
+  private String exemptUrls;
+  private StatelessClientPolicy statelessClientPolicy;
+  private QrCodeFormat qrCodeFormat;
 
   public MoGlobalConfig() {
     load();
   }
 
+  @Override
+  public synchronized void load() {
+    super.load();
+    onConfigChanged();
+  }
+
+  @Override
+  public synchronized void save() {
+    super.save();
+    onConfigChanged();
+  }
+
+  private void onConfigChanged() {
+    MoTfaPolicySnapshot.publish(this);
+  }
+
   public Boolean getEnableTfa() {
     return enableTfa != null ? enableTfa : false;
   }
   public MoGlobalAdvancedSettings getAdvancedSettings() {
-    return new MoGlobalAdvancedSettings(MoGlobalConfig.get().getAdvancedSettingsDTO());
+    return new MoGlobalAdvancedSettings(moAdvancedSettingsDTO);
   }
 
   @SuppressWarnings("unused")
@@ -129,14 +147,53 @@ public class MoGlobalConfig extends GlobalConfiguration {
     if (bypassUsers == null || bypassUsers.trim().isEmpty()) {
       return Collections.emptyList();
     }
-    return Arrays.asList(bypassUsers.split("[,\\s]+"));
+    return Arrays.asList(bypassUsers.trim().split("[,\\s]+"));
+  }
+
+  @SuppressWarnings("unused")
+  public String getExemptUrls() {
+    return exemptUrls != null ? exemptUrls : "";
+  }
+
+  @SuppressWarnings("unused")
+  @DataBoundSetter
+  public void setExemptUrls(String exemptUrls) {
+    this.exemptUrls = exemptUrls;
+  }
+
+  public List<String> getExemptUrlsList() {
+    if (exemptUrls == null || exemptUrls.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(exemptUrls.trim().split("[,\\s]+"));
+  }
+
+  @SuppressWarnings("unused")
+  public StatelessClientPolicy getStatelessClientPolicy() {
+    return statelessClientPolicy != null ? statelessClientPolicy : StatelessClientPolicy.API_TOKEN_ONLY;
+  }
+
+  @SuppressWarnings("unused")
+  @DataBoundSetter
+  public void setStatelessClientPolicy(StatelessClientPolicy statelessClientPolicy) {
+    this.statelessClientPolicy = statelessClientPolicy;
+  }
+
+  @SuppressWarnings("unused")
+  public QrCodeFormat getQrCodeFormat() {
+    return qrCodeFormat != null ? qrCodeFormat : QrCodeFormat.SVG;
+  }
+
+  @SuppressWarnings("unused")
+  @DataBoundSetter
+  public void setQrCodeFormat(QrCodeFormat qrCodeFormat) {
+    this.qrCodeFormat = qrCodeFormat;
   }
 
   public void saveMoGlobalConfigViewForm(JSONObject formData) {
     try {
       enableTfa = formData.getBoolean("enableTfa");
       enableTfaForAllUsers = enableTfa;
-      moPluginSettings.put(ENABLE_2FA_FOR_ALL_USERS.getKey(), enableTfa);
       enableSecurityQuestionsAuthentication = formData.getBoolean("enableSecurityQuestion");
       enableTotpAuthentication = formData.optBoolean("enableTotpAuthentication", false);
 
@@ -144,6 +201,18 @@ public class MoGlobalConfig extends GlobalConfiguration {
         bypassUsers = formData.getString("bypassUsers");
       }
 
+      if (formData.containsKey("exemptUrls")) {
+        exemptUrls = formData.getString("exemptUrls");
+      }
+
+      if (formData.containsKey("statelessClientPolicy")) {
+        statelessClientPolicy = StatelessClientPolicy.valueOf(formData.getString("statelessClientPolicy"));
+      }
+
+      if (formData.containsKey("qrCodeFormat")) {
+        qrCodeFormat = QrCodeFormat.valueOf(formData.getString("qrCodeFormat"));
+      }
+
       if (formData.containsKey("enableOtpOverEmail")) {
         JSONObject otpOverEmail = formData.getJSONObject("enableOtpOverEmail");
         String senderEmailAddress = otpOverEmail.getString("senderEmailAddress");
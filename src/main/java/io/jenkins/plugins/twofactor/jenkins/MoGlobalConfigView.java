@@ -31,7 +31,11 @@ import hudson.model.ManagementLink;
 import hudson.util.FormApply;
 import hudson.util.FormValidation;
 import io.jenkins.cli.shaded.org.apache.commons.lang.StringUtils;
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.QrCodeFormat;
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.StatelessClientPolicy;
 import io.jenkins.plugins.twofactor.constants.MoPluginUrls;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoOtpMailSender;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
 
 import java.io.File;
 import java.io.IOException;
@@ -41,6 +45,8 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -111,6 +117,57 @@ public class MoGlobalConfigView extends ManagementLink implements Describable<Mo
         return MoGlobalConfig.get().getBypassUsers();
     }
 
+    public String getExemptUrls() {
+        return MoGlobalConfig.get().getExemptUrls();
+    }
+
+    public StatelessClientPolicy getStatelessClientPolicy() {
+        return MoGlobalConfig.get().getStatelessClientPolicy();
+    }
+
+    public StatelessClientPolicy[] getStatelessClientPolicies() {
+        return StatelessClientPolicy.values();
+    }
+
+    /**
+     * @return how far accepted TOTP codes were from the server clock, in time steps, shown next to
+     * the TOTP settings
+     */
+    public String getTotpDriftDistribution() {
+        StringBuilder distribution = new StringBuilder();
+        for (Map.Entry<Integer, Long> bucket : MoTotpConfig.getDriftHistogram().entrySet()) {
+            if (distribution.length() > 0) {
+                distribution.append(", ");
+            }
+            distribution.append(bucket.getKey() > 0 ? "+" : "").append(bucket.getKey())
+                    .append(": ").append(bucket.getValue());
+        }
+        return distribution.toString();
+    }
+
+    public QrCodeFormat getQrCodeFormat() {
+        return MoGlobalConfig.get().getQrCodeFormat();
+    }
+
+    public QrCodeFormat[] getQrCodeFormats() {
+        return QrCodeFormat.values();
+    }
+
+    /**
+     * @return the state of the OTP mail circuit breaker, shown next to the OTP over email settings
+     */
+    public String getOtpMailDeliveryStatus() {
+        switch (MoOtpMailSender.getCircuitState()) {
+            case OPEN:
+                return "Unavailable since " + new Date(MoOtpMailSender.getCircuitOpenedAt())
+                        + ", the mail server kept failing. Users are offered their other configured methods.";
+            case HALF_OPEN:
+                return "Recovering, the next email will test the mail server.";
+            default:
+                return "Healthy";
+        }
+    }
+
     public MoGlobalAdvancedSettings getAdvancedSettings() {
         return new MoGlobalAdvancedSettings(MoGlobalConfig.get().getAdvancedSettingsDTO());
     }
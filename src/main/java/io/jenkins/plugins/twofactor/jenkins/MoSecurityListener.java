@@ -36,7 +36,7 @@ public class MoSecurityListener extends SecurityListener {
 
   @Override
   public void loggedOut(@NonNull String username) {
-    userAuthenticationStatus.put(username, false);
+    userAuthenticationStatus.update(username, false);
     LOGGER.fine("Executing logged out event for username " + username);
   }
 }
@@ -1,7 +1,5 @@
 package io.jenkins.plugins.twofactor.jenkins;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.UtilityGlobalConstants.SESSION_2FA_VERIFICATION;
-
 import hudson.Extension;
 import hudson.model.User;
 import hudson.security.csrf.CrumbExclusion;
@@ -22,7 +20,7 @@ public class MoTfaCrumbExclusion extends CrumbExclusion {
   public boolean process(
       HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
       throws IOException, ServletException {
-    HttpSession session = request.getSession();
+    HttpSession session = request.getSession(false);
     User user = User.current();
 
     if (user == null || session == null || ignoreCrumbCheck(session, user.getId())) {
@@ -33,8 +31,8 @@ public class MoTfaCrumbExclusion extends CrumbExclusion {
   }
 
   private boolean ignoreCrumbCheck(HttpSession session, String userId) {
-    String sessionAttributeKey = userId + SESSION_2FA_VERIFICATION.getKey();
-    Object tfaVerificationAttribute = session.getAttribute(sessionAttributeKey);
+    Object tfaVerificationAttribute =
+        session.getAttribute(MoFilter.getSessionVerificationKey(userId));
 
     if (tfaVerificationAttribute == null) {
       return true;
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.QrCodeFormat;
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.StatelessClientPolicy;
+import io.jenkins.plugins.twofactor.jenkins.dto.MoOtpOverEmailDto;
+import io.jenkins.plugins.twofactor.jenkins.util.MoMessageTemplate;
+import io.jenkins.plugins.twofactor.jenkins.util.MoUrlExemptionMatcher;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Immutable view of the 2FA global configuration. A new snapshot is published every time
+ * {@link MoGlobalConfig} is loaded or saved, so request handling code reads a single volatile
+ * reference instead of looking the configuration up through the extension list.
+ */
+public final class MoTfaPolicySnapshot {
+  private static final Logger LOGGER = Logger.getLogger(MoTfaPolicySnapshot.class.getName());
+  /** Placeholders of the OTP email, rendered with the user id and the OTP in this order. */
+  public static final String[] OTP_EMAIL_PLACEHOLDERS = {"$username", "$otp"};
+  private static final AtomicLong versions = new AtomicLong();
+  private static final List<Consumer<MoTfaPolicySnapshot>> listeners = new CopyOnWriteArrayList<>();
+  private static volatile MoTfaPolicySnapshot current =
+      new MoTfaPolicySnapshot(
+          0,
+          false,
+          false,
+          false,
+          false,
+          "",
+          Collections.emptySet(),
+          MoFilter.compileUrlExemptions(Collections.emptyList()),
+          StatelessClientPolicy.API_TOKEN_ONLY,
+          QrCodeFormat.SVG,
+          new MoGlobalAdvancedSettings(null));
+
+  private final long version;
+  private final boolean enableTfa;
+  private final boolean enableSecurityQuestionsAuthentication;
+  private final boolean enableOtpOverEmailAuthentication;
+  private final boolean enableTotpAuthentication;
+  private final String senderEmailAddress;
+  private final Set<String> bypassUserIds;
+  private final MoUrlExemptionMatcher urlExemptionMatcher;
+  private final StatelessClientPolicy statelessClientPolicy;
+  private final QrCodeFormat qrCodeFormat;
+  private final MoMessageTemplate otpEmailSubject;
+  private final MoMessageTemplate otpEmailTemplate;
+
+  private MoTfaPolicySnapshot(
+      long version,
+      boolean enableTfa,
+      boolean enableSecurityQuestionsAuthentication,
+      boolean enableOtpOverEmailAuthentication,
+      boolean enableTotpAuthentication,
+      String senderEmailAddress,
+      Set<String> bypassUserIds,
+      MoUrlExemptionMatcher urlExemptionMatcher,
+      StatelessClientPolicy statelessClientPolicy,
+      QrCodeFormat qrCodeFormat,
+      MoGlobalAdvancedSettings advancedSettings) {
+    this.version = version;
+    this.enableTfa = enableTfa;
+    this.enableSecurityQuestionsAuthentication = enableSecurityQuestionsAuthentication;
+    this.enableOtpOverEmailAuthentication = enableOtpOverEmailAuthentication;
+    this.enableTotpAuthentication = enableTotpAuthentication;
+    this.senderEmailAddress = senderEmailAddress;
+    this.bypassUserIds = bypassUserIds;
+    this.urlExemptionMatcher = urlExemptionMatcher;
+    this.statelessClientPolicy = statelessClientPolicy;
+    this.qrCodeFormat = qrCodeFormat;
+    this.otpEmailSubject =
+        MoMessageTemplate.compile(
+            advancedSettings.getCustomOTPEmailSubject(), OTP_EMAIL_PLACEHOLDERS);
+    this.otpEmailTemplate =
+        MoMessageTemplate.compile(
+            advancedSettings.getCustomOTPEmailTemplate(), OTP_EMAIL_PLACEHOLDERS);
+  }
+
+  /**
+   * @return the most recently published snapshot, never null
+   */
+  public static MoTfaPolicySnapshot current() {
+    return current;
+  }
+
+  /**
+   * Register a callback invoked with every newly published snapshot.
+   */
+  public static void subscribe(Consumer<MoTfaPolicySnapshot> listener) {
+    listeners.add(listener);
+  }
+
+  static MoTfaPolicySnapshot publish(MoGlobalConfig config) {
+    MoOtpOverEmailDto otpOverEmailDto = config.getOtpOverEmailDto();
+    MoTfaPolicySnapshot snapshot =
+        new MoTfaPolicySnapshot(
+            versions.incrementAndGet(),
+            config.getEnableTfa(),
+            config.isEnableSecurityQuestionsAuthentication(),
+            config.isEnableOtpOverEmailAuthentication(),
+            config.isEnableTotpAuthentication(),
+            otpOverEmailDto != null ? otpOverEmailDto.getSenderEmailAddress() : "",
+            buildBypassUserIds(config.getBypassUsersList()),
+            MoFilter.compileUrlExemptions(config.getExemptUrlsList()),
+            config.getStatelessClientPolicy(),
+            config.getQrCodeFormat(),
+            new MoGlobalAdvancedSettings(config.getAdvancedSettingsDTO()));
+    current = snapshot;
+    LOGGER.fine("Published 2FA policy snapshot version " + snapshot.version);
+
+    for (Consumer<MoTfaPolicySnapshot> listener : listeners) {
+      try {
+        listener.accept(snapshot);
+      } catch (RuntimeException e) {
+        LOGGER.fine("Error in notifying 2FA policy listener " + e.getMessage());
+      }
+    }
+    return snapshot;
+  }
+
+  private static Set<String> buildBypassUserIds(List<String> bypassUsers) {
+    Set<String> userIds = new HashSet<>();
+    for (String userId : bypassUsers) {
+      if (!userId.isEmpty()) {
+        userIds.add(userId.toLowerCase(Locale.ROOT));
+      }
+    }
+    return Collections.unmodifiableSet(userIds);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public boolean isEnableTfa() {
+    return enableTfa;
+  }
+
+  public boolean isEnableSecurityQuestionsAuthentication() {
+    return enableSecurityQuestionsAuthentication;
+  }
+
+  public boolean isEnableOtpOverEmailAuthentication() {
+    return enableOtpOverEmailAuthentication;
+  }
+
+  public boolean isEnableTotpAuthentication() {
+    return enableTotpAuthentication;
+  }
+
+  public String getSenderEmailAddress() {
+    return senderEmailAddress;
+  }
+
+  /**
+   * Check if the user is in the bypass list. The list is case-folded into a hash set when the
+   * snapshot is built, so this is a constant time lookup.
+   */
+  public boolean isBypassUser(String userId) {
+    return userId != null && bypassUserIds.contains(userId.toLowerCase(Locale.ROOT));
+  }
+
+  public boolean isExemptUrl(String url) {
+    return urlExemptionMatcher.matches(url);
+  }
+
+  public StatelessClientPolicy getStatelessClientPolicy() {
+    return statelessClientPolicy;
+  }
+
+  public QrCodeFormat getQrCodeFormat() {
+    return qrCodeFormat;
+  }
+
+  /**
+   * @return the OTP email subject, compiled when the snapshot was published
+   */
+  public MoMessageTemplate getOtpEmailSubject() {
+    return otpEmailSubject;
+  }
+
+  /**
+   * @return the OTP email body, compiled when the snapshot was published
+   */
+  public MoMessageTemplate getOtpEmailTemplate() {
+    return otpEmailTemplate;
+  }
+}
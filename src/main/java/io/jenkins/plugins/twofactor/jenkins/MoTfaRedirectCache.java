@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Caches the 2FA redirect decision computed by {@link MoFilter} for each user, so that a user
+ * sitting on the 2FA page does not walk all of their properties on every request. An entry is
+ * dropped when the user is saved (which is how every 2FA method records a configuration change)
+ * and the whole cache is dropped whenever a new {@link MoTfaPolicySnapshot} is published. The
+ * entry of a user is also dropped when their last session ends, and the cache is bounded.
+ */
+@SuppressWarnings("unused")
+@Extension
+public class MoTfaRedirectCache extends SaveableListener {
+  private static final Logger LOGGER = Logger.getLogger(MoTfaRedirectCache.class.getName());
+  private static final int MAX_ENTRIES =
+      SystemProperties.getInteger(MoTfaRedirectCache.class.getName() + ".maxEntries", 10000);
+  private static final Map<String, Decision> decisions = new ConcurrentHashMap<>();
+  private static final AtomicLong generation = new AtomicLong();
+
+  static {
+    MoTfaPolicySnapshot.subscribe(policy -> invalidateAll());
+  }
+
+  static Decision get(User user, Function<User, Decision> loader) {
+    String userId = user.getId();
+    Decision decision = decisions.get(userId);
+    if (decision != null) {
+      return decision;
+    }
+
+    // An invalidation racing with the computation bumps the generation, in which case the
+    // freshly computed (and possibly stale) decision is used once but not kept in the cache.
+    long currentGeneration = generation.get();
+    decision = loader.apply(user);
+    // Decisions are cheap to recompute, so a full cache is simply started over
+    if (decisions.size() >= MAX_ENTRIES) {
+      decisions.clear();
+    }
+    decisions.put(userId, decision);
+    if (generation.get() != currentGeneration) {
+      decisions.remove(userId, decision);
+    }
+    return decision;
+  }
+
+  public static void invalidate(String userId) {
+    generation.incrementAndGet();
+    decisions.remove(userId);
+  }
+
+  public static int size() {
+    return decisions.size();
+  }
+
+  public static void invalidateAll() {
+    generation.incrementAndGet();
+    decisions.clear();
+  }
+
+  @Override
+  public void onChange(Saveable o, XmlFile file) {
+    if (o instanceof User) {
+      LOGGER.fine("User configuration changed, dropping cached 2FA redirect decision");
+      invalidate(((User) o).getId());
+    }
+  }
+
+  /** The outcome of a redirect computation for one user. */
+  static final class Decision {
+    private final String redirectUrl;
+    private final int totalEnabledMethods;
+    private final int totalConfiguredMethods;
+
+    Decision(String redirectUrl, int totalEnabledMethods, int totalConfiguredMethods) {
+      this.redirectUrl = redirectUrl;
+      this.totalEnabledMethods = totalEnabledMethods;
+      this.totalConfiguredMethods = totalConfiguredMethods;
+    }
+
+    String getRedirectUrl() {
+      return redirectUrl;
+    }
+
+    int getTotalEnabledMethods() {
+      return totalEnabledMethods;
+    }
+
+    int getTotalConfiguredMethods() {
+      return totalConfiguredMethods;
+    }
+
+    boolean isSkipFilter() {
+      return "SKIP_FILTER".equals(redirectUrl);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.User;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoOtpOverEmailAuth;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpSessionEvent;
+import jenkins.util.HttpSessionListener;
+
+/**
+ * Releases the 2FA state of a user when their HTTP session is destroyed, whether by logout or by
+ * session timeout, so that abandoned challenges and OTPs do not stay in memory until restart.
+ * Challenges belong to a single session and are dropped with it. State keyed by user, such as a
+ * pending OTP, is only dropped when the last session registered for that user ends, so that
+ * logging out in one browser does not break a login in progress in another.
+ */
+@SuppressWarnings("unused")
+@Extension
+public class MoTfaSessionListener extends HttpSessionListener {
+  private static final Logger LOGGER = Logger.getLogger(MoTfaSessionListener.class.getName());
+  private static final LongAdder reclaimedEntries = new LongAdder();
+  // Sessions by canonical user id, and the user ids, as registered, by session
+  private static final Map<String, Set<String>> sessionsByUser = new ConcurrentHashMap<>();
+  private static final Map<String, Set<String>> usersBySession = new ConcurrentHashMap<>();
+
+  /**
+   * Remember that a session carries 2FA state of a user. Called wherever such state is created.
+   */
+  public static void register(String userId, String sessionId) {
+    if (userId == null || userId.isEmpty() || sessionId == null) {
+      return;
+    }
+    usersBySession.computeIfAbsent(sessionId, key -> ConcurrentHashMap.newKeySet()).add(userId);
+    sessionsByUser
+        .computeIfAbsent(canonical(userId), key -> ConcurrentHashMap.newKeySet())
+        .add(sessionId);
+  }
+
+  @Override
+  public void sessionDestroyed(HttpSessionEvent event) {
+    try {
+      String sessionId = event.getSession().getId();
+      int reclaimed =
+          ExtensionList.lookupSingleton(MoUserAuth.class).cleanUserAuthResource(sessionId);
+      reclaimed += release(sessionId);
+      reclaimedEntries.add(reclaimed);
+    } catch (Exception e) {
+      LOGGER.fine("Error in releasing 2FA state of destroyed session " + e.getMessage());
+    }
+  }
+
+  /**
+   * Unregister a session, and drop the user keyed 2FA state of every user for whom it was the
+   * last registered session. Users the session was never registered for are left alone.
+   * @return the number of 2FA entries released
+   */
+  static int release(String sessionId) {
+    Set<String> userIds = usersBySession.remove(sessionId);
+    if (userIds == null) {
+      return 0;
+    }
+    int reclaimed = 0;
+    for (String userId : userIds) {
+      if (!isLastSession(userId, sessionId)) {
+        continue;
+      }
+      if (MoOtpOverEmailAuth.clearSentOtp(userId)) reclaimed++;
+      if (userAuthenticationStatus.remove(userId)) reclaimed++;
+      reclaimed += MoOtpOverEmailAuth.evictIdleThrottles(userId);
+      MoTotpKeyCache.invalidate(userId);
+      MoTfaRedirectCache.invalidate(userId);
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Last session destroyed for " + userId + ", released " + reclaimed + " 2FA entries");
+      }
+    }
+    return reclaimed;
+  }
+
+  /**
+   * Unregister a destroyed session of a registered user.
+   * @return true if no other registered session of the user is still alive
+   */
+  private static boolean isLastSession(String userId, String sessionId) {
+    boolean[] lastSession = new boolean[1];
+    sessionsByUser.computeIfPresent(
+        canonical(userId),
+        (key, sessionIds) -> {
+          sessionIds.remove(sessionId);
+          lastSession[0] = sessionIds.isEmpty();
+          return lastSession[0] ? null : sessionIds;
+        });
+    return lastSession[0];
+  }
+
+  private static String canonical(String userId) {
+    return User.idStrategy().keyFor(userId);
+  }
+
+  /**
+   * @return the number of 2FA state entries released since startup
+   */
+  public static long getReclaimedEntries() {
+    return reclaimedEntries.sum();
+  }
+
+  /**
+   * @return the number of users with a registered session
+   */
+  public static int getTrackedUserCount() {
+    return sessionsByUser.size();
+  }
+}
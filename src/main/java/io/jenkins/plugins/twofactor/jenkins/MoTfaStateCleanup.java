@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.model.PeriodicWork;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoOtpMailDispatcher;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoOtpMailSender;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoOtpOverEmailAuth;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically drops expired per-user 2FA state and abandoned 2FA challenges so that it does not accumulate between restarts.
+ */
+@SuppressWarnings("unused")
+@Extension
+public class MoTfaStateCleanup extends PeriodicWork {
+  private static final Logger LOGGER = Logger.getLogger(MoTfaStateCleanup.class.getName());
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.MINUTES.toMillis(5);
+  }
+
+  @Override
+  protected void doRun() {
+    // Every eviction runs whether or not FINE is enabled, only building the messages is skipped
+    int statuses = userAuthenticationStatus.evictExpired();
+    MoUserAuth moUserAuth = ExtensionList.lookupSingleton(MoUserAuth.class);
+    int challenges = moUserAuth.evictExpiredChallenges();
+    int otps = MoOtpOverEmailAuth.evictExpiredOtps();
+    int throttles = MoOtpOverEmailAuth.evictIdleThrottles();
+    int mailStatuses = MoOtpMailDispatcher.evictFinished();
+    int transports = MoOtpMailSender.evictIdleTransports();
+    int replayEntries = MoTotpReplayGuard.evictStale();
+    MoTotpReplayGuard.save();
+    int keys = MoTotpKeyCache.evictIdle();
+    int qrCodes = MoTotpQrCache.evictIdle();
+    int apiTokens = MoFilter.evictExpiredApiTokens();
+
+    if (!LOGGER.isLoggable(Level.FINE)) {
+      return;
+    }
+    LOGGER.fine(
+        "Evicted "
+            + statuses
+            + " idle 2FA status entries, "
+            + userAuthenticationStatus.size()
+            + " remaining, hit rate "
+            + userAuthenticationStatus.getHitRate());
+    LOGGER.fine(
+        "Evicted "
+            + challenges
+            + " expired 2FA challenges, "
+            + moUserAuth.getChallengeCount()
+            + " remaining");
+    LOGGER.fine("Dropped expired email OTPs of " + otps + " users");
+    LOGGER.fine(
+        "Dropped "
+            + throttles
+            + " idle OTP throttles, "
+            + MoOtpOverEmailAuth.getThrottledRequestCount()
+            + " requests throttled and "
+            + MoOtpMailDispatcher.getCollapsedSendCount()
+            + " duplicate sends collapsed since startup");
+    LOGGER.fine(
+        "Dropped "
+            + mailStatuses
+            + " finished OTP mail statuses, "
+            + MoOtpMailDispatcher.getQueuedCount()
+            + " mails queued, closed "
+            + transports
+            + " idle SMTP connections");
+    LOGGER.fine(
+        "Dropped "
+            + replayEntries
+            + " stale TOTP replay entries, "
+            + MoTotpReplayGuard.size()
+            + " remaining");
+    LOGGER.fine(
+        "Dropped "
+            + keys
+            + " idle TOTP keys, "
+            + MoTotpKeyCache.size()
+            + " cached, "
+            + qrCodes
+            + " idle QR codes, "
+            + MoTotpQrCache.size()
+            + " cached");
+    LOGGER.fine("TOTP clock drift distribution " + MoTotpConfig.getDriftHistogram());
+    LOGGER.fine("Dropped " + apiTokens + " expired API token verifications");
+  }
+}
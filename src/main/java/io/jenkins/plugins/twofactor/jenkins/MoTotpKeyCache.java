@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpEngine;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Caches the decoded TOTP key of each user, so that verifying a code neither decrypts the
+ * {@link Secret} nor base32 decodes it again. Keys are held only as byte arrays and are zeroed
+ * when they are dropped, which happens when the user's secret changes, after an idle timeout,
+ * or when the cache grows past its bound. Callers get a copy of the cached key, so dropping an
+ * entry never zeroes a key that a verification is still using.
+ */
+public final class MoTotpKeyCache {
+  private static final Logger LOGGER = Logger.getLogger(MoTotpKeyCache.class.getName());
+  static final int MAX_ENTRIES =
+      SystemProperties.getInteger(MoTotpKeyCache.class.getName() + ".maxEntries", 10000);
+  static final long IDLE_TIMEOUT_MILLIS =
+      TimeUnit.MINUTES.toMillis(
+          SystemProperties.getLong(MoTotpKeyCache.class.getName() + ".idleTimeoutMinutes", 15L));
+
+  private static final Map<String, Entry> keys = new ConcurrentHashMap<>();
+
+  private MoTotpKeyCache() {}
+
+  /**
+   * Get the decoded key of a user. An entry decoded from a different {@link Secret} instance,
+   * for example before the user was reloaded from disk, is replaced.
+   * @return a copy of the decoded key that the caller should zero after use, or null if the
+   *     secret is blank or not valid base32
+   */
+  public static byte[] get(String userId, Secret secret) {
+    Entry entry = keys.get(userId);
+    long now = System.currentTimeMillis();
+    if (entry != null && entry.source == secret) {
+      entry.lastAccess = now;
+      byte[] copy = entry.copy();
+      // Null if the entry was dropped and zeroed since it was read, the key is decoded again
+      if (copy != null) {
+        return copy;
+      }
+    }
+
+    String plainText = Secret.toString(secret);
+    if (plainText.isEmpty()) {
+      return null;
+    }
+    byte[] key;
+    try {
+      key = MoTotpEngine.decodeBase32(plainText);
+    } catch (IllegalArgumentException e) {
+      LOGGER.fine("TOTP secret of " + userId + " is not valid base32");
+      return null;
+    }
+
+    // Copied before the entry is published, as a concurrent invalidate may zero it right after
+    byte[] copy = key.clone();
+    if (keys.size() >= MAX_ENTRIES) {
+      evictIdle(now, true);
+    }
+    Entry previous = keys.put(userId, new Entry(secret, key, now));
+    if (previous != null) {
+      previous.destroy();
+    }
+    return copy;
+  }
+
+  /**
+   * Drop and zero the cached key of a user, called when their secret is replaced or reset.
+   */
+  public static void invalidate(String userId) {
+    Entry entry = keys.remove(userId);
+    if (entry != null) {
+      entry.destroy();
+    }
+  }
+
+  /**
+   * Drop and zero keys that have not been used for the idle timeout.
+   * @return the number of keys dropped
+   */
+  public static int evictIdle() {
+    return evictIdle(System.currentTimeMillis(), false);
+  }
+
+  public static int size() {
+    return keys.size();
+  }
+
+  // When the cache is full and nothing is idle, everything is dropped: keys are cheap to decode
+  // again and this keeps the bound without sorting by access time.
+  static int evictIdle(long now, boolean full) {
+    int removed = 0;
+    for (Map.Entry<String, Entry> entry : keys.entrySet()) {
+      if (now - entry.getValue().lastAccess > IDLE_TIMEOUT_MILLIS
+          && keys.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().destroy();
+        removed++;
+      }
+    }
+    if (full && removed == 0) {
+      for (Map.Entry<String, Entry> entry : keys.entrySet()) {
+        if (keys.remove(entry.getKey(), entry.getValue())) {
+          entry.getValue().destroy();
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  // Copying and zeroing share the entry's lock, so a copy is never taken of a half zeroed key
+  static final class Entry {
+    private final Secret source;
+    private final byte[] key;
+    private volatile long lastAccess;
+    private boolean destroyed;
+
+    Entry(Secret source, byte[] key, long lastAccess) {
+      this.source = source;
+      this.key = key;
+      this.lastAccess = lastAccess;
+    }
+
+    /**
+     * @return a copy of the key, or null once the entry was destroyed
+     */
+    synchronized byte[] copy() {
+      return destroyed ? null : key.clone();
+    }
+
+    synchronized void destroy() {
+      destroyed = true;
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Generates TOTP secrets for many users ahead of an enrollment campaign, so that users do not
+ * each trigger a secret generation and a save from the request thread the first time they open
+ * the setup page. The users are split into batches that a small fork/join pool provisions in
+ * parallel. Only one job runs at a time, and its progress is polled by the user management page.
+ */
+public final class MoTotpProvisioner {
+  private static final Logger LOGGER = Logger.getLogger(MoTotpProvisioner.class.getName());
+  private static final int PARALLELISM =
+      SystemProperties.getInteger(
+          MoTotpProvisioner.class.getName() + ".parallelism",
+          Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private static final int BATCH_SIZE =
+      SystemProperties.getInteger(MoTotpProvisioner.class.getName() + ".batchSize", 50);
+
+  private static final ForkJoinPool pool =
+      new ForkJoinPool(PARALLELISM, MoTotpProvisioner::newWorker, null, false);
+  private static final AtomicReference<Job> latest = new AtomicReference<>();
+
+  private MoTotpProvisioner() {}
+
+  private static ForkJoinWorkerThread newWorker(ForkJoinPool pool) {
+    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+    thread.setName("MoTotpProvisioner-" + thread.getPoolIndex());
+    thread.setContextClassLoader(MoTotpProvisioner.class.getClassLoader());
+    return thread;
+  }
+
+  /**
+   * Start provisioning the given users, unless a job is already running, in which case that job
+   * is returned instead.
+   * @return the job that is provisioning users
+   */
+  public static Job start(List<String> userIds) {
+    Job created = new Job(userIds);
+    Job job =
+        latest.updateAndGet(existing -> existing != null && !existing.isFinished() ? existing : created);
+    if (job != created) {
+      LOGGER.fine("TOTP provisioning is already running, not starting another");
+      return job;
+    }
+
+    LOGGER.fine("Provisioning TOTP secrets for " + userIds.size() + " users");
+    pool.execute(
+        () -> {
+          try {
+            new ProvisionTask(created, 0, userIds.size()).invoke();
+          } finally {
+            created.finish();
+            LOGGER.fine(
+                "TOTP provisioning finished, "
+                    + created.getProvisioned()
+                    + " provisioned, "
+                    + created.getSkipped()
+                    + " skipped, "
+                    + created.getFailed()
+                    + " failed");
+          }
+        });
+    return created;
+  }
+
+  /**
+   * @return the latest job, or null if nothing was provisioned since the last restart
+   */
+  public static Job getLatest() {
+    return latest.get();
+  }
+
+  /** Progress of one provisioning run. */
+  public static final class Job {
+    private final List<String> userIds;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger provisioned = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile boolean finished;
+
+    private Job(List<String> userIds) {
+      this.userIds = new ArrayList<>(userIds);
+    }
+
+    private void provision(String userId) {
+      try {
+        User user = User.getById(userId, false);
+        MoTotpConfig totpConfig = user != null ? user.getProperty(MoTotpConfig.class) : null;
+        if (totpConfig == null) {
+          failed.incrementAndGet();
+        } else if (totpConfig.ensureSecretKey()) {
+          provisioned.incrementAndGet();
+        } else {
+          skipped.incrementAndGet();
+        }
+      } catch (Exception e) {
+        LOGGER.fine("Error in provisioning TOTP secret for " + userId + ", error is " + e.getMessage());
+        failed.incrementAndGet();
+      }
+      processed.incrementAndGet();
+    }
+
+    private void finish() {
+      finished = true;
+    }
+
+    public List<String> getUserIds() {
+      return userIds;
+    }
+
+    public int getTotal() {
+      return userIds.size();
+    }
+
+    public int getProcessed() {
+      return processed.get();
+    }
+
+    public int getProvisioned() {
+      return provisioned.get();
+    }
+
+    /**
+     * @return the number of users who already had a secret
+     */
+    public int getSkipped() {
+      return skipped.get();
+    }
+
+    public int getFailed() {
+      return failed.get();
+    }
+
+    public boolean isFinished() {
+      return finished;
+    }
+  }
+
+  // Splits the users until a batch is small enough to provision on one worker
+  private static final class ProvisionTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final transient Job job;
+    private final int from;
+    private final int to;
+
+    private ProvisionTask(Job job, int from, int to) {
+      this.job = job;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= BATCH_SIZE) {
+        // Batches run on whichever pool worker steals them, so each one takes the system identity
+        // itself rather than relying on the thread that started the job
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+          for (int i = from; i < to; i++) {
+            job.provision(job.userIds.get(i));
+          }
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new ProvisionTask(job, from, middle), new ProvisionTask(job, middle, to));
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.QrCodeFormat;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpEngine;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
+import jenkins.util.SystemProperties;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+
+/**
+ * Caches the rendered TOTP enrollment QR code of each user and serves it over HTTP, so that
+ * reloading the setup page neither renders the image again nor inlines it into the HTML. An
+ * image is tied to the {@link Secret} instance and the format it was rendered with, and carries
+ * a random strong ETag, which lets the browser revalidate its copy and get a 304 while the
+ * secret is unchanged.
+ */
+public final class MoTotpQrCache {
+  private static final Logger LOGGER = Logger.getLogger(MoTotpQrCache.class.getName());
+  private static final int MAX_ENTRIES =
+      SystemProperties.getInteger(MoTotpQrCache.class.getName() + ".maxEntries", 1000);
+  private static final long IDLE_TIMEOUT_MILLIS =
+      TimeUnit.MINUTES.toMillis(
+          SystemProperties.getLong(MoTotpQrCache.class.getName() + ".idleTimeoutMinutes", 30L));
+  private static final String ISSUER = "Jenkins";
+
+  private static final Map<String, Image> images = new ConcurrentHashMap<>();
+
+  private MoTotpQrCache() {}
+
+  /**
+   * Respond with the QR code of a user, or with 304 if the request already holds the current
+   * image.
+   * @param algorithm the algorithm the user enrolled with
+   * @param digits the number of digits the user enrolled with
+   * @param ifNoneMatch the If-None-Match header of the request
+   */
+  public static HttpResponse respond(
+      String userId,
+      Secret secret,
+      MoTotpEngine.Algorithm algorithm,
+      int digits,
+      String ifNoneMatch) {
+    String secretKey = Secret.toString(secret);
+    if (secretKey.isEmpty()) {
+      return HttpResponses.notFound();
+    }
+
+    Image image = get(userId, secret, secretKey, algorithm, digits);
+    return (req, rsp, node) -> {
+      rsp.setHeader("ETag", image.etag);
+      // The image encodes the secret, so shared caches must not keep it and the browser has to
+      // revalidate before every use, which is what lets a reset take effect immediately
+      rsp.setHeader("Cache-Control", "private, no-cache");
+      if (matches(ifNoneMatch, image.etag)) {
+        rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      rsp.setContentType(image.contentType);
+      rsp.setContentLength(image.content.length);
+      rsp.getOutputStream().write(image.content);
+    };
+  }
+
+  /**
+   * Drop the image of a user, called when their secret is replaced or reset.
+   */
+  public static void invalidate(String userId) {
+    images.remove(userId);
+  }
+
+  /**
+   * Drop images that have not been requested for the idle timeout.
+   * @return the number of images dropped
+   */
+  public static int evictIdle() {
+    return evictIdle(System.currentTimeMillis());
+  }
+
+  private static int evictIdle(long now) {
+    int removed = 0;
+    for (Map.Entry<String, Image> entry : images.entrySet()) {
+      if (now - entry.getValue().lastAccess > IDLE_TIMEOUT_MILLIS
+          && images.remove(entry.getKey(), entry.getValue())) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  public static int size() {
+    return images.size();
+  }
+
+  private static Image get(
+      String userId, Secret secret, String secretKey, MoTotpEngine.Algorithm algorithm, int digits) {
+    long now = System.currentTimeMillis();
+    QrCodeFormat format = MoTfaPolicySnapshot.current().getQrCodeFormat();
+    Image image = images.get(userId);
+    if (image != null && image.source == secret && image.format == format) {
+      image.lastAccess = now;
+      return image;
+    }
+
+    LOGGER.fine("Rendering TOTP QR code for " + userId + " as " + format);
+    byte[] content =
+        format == QrCodeFormat.PNG
+            ? MoTotpUtil.generateQRCodeImage(secretKey, userId, ISSUER, algorithm, digits)
+            : MoTotpUtil.generateQRCodeSvg(secretKey, userId, ISSUER, algorithm, digits);
+    image = new Image(secret, format, content, now);
+    if (images.size() >= MAX_ENTRIES) {
+      evict(now);
+    }
+    images.put(userId, image);
+    return image;
+  }
+
+  // Called when the size bound is reached: first drop idle images, then the least recently
+  // requested ones until the cache is back to 90% of its bound, so that users in the middle of
+  // enrolling keep their image and the next insert does not trigger another scan.
+  private static void evict(long now) {
+    evictIdle(now);
+    int target = MAX_ENTRIES - MAX_ENTRIES / 10;
+    int excess = images.size() - target;
+    if (excess <= 0) {
+      return;
+    }
+
+    // Access times are copied first so that concurrent requests cannot reorder the sort
+    List<Candidate> candidates = new ArrayList<>(images.size());
+    for (Map.Entry<String, Image> entry : images.entrySet()) {
+      candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+    }
+    candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+    int removed = 0;
+    for (int i = 0; i < candidates.size() && removed < excess; i++) {
+      Candidate candidate = candidates.get(i);
+      if (images.remove(candidate.userId, candidate.image)) {
+        removed++;
+      }
+    }
+    LOGGER.fine("TOTP QR code cache exceeded " + MAX_ENTRIES + " images, evicted " + removed);
+  }
+
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      if (candidate.trim().equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class Candidate {
+    private final String userId;
+    private final Image image;
+    private final long lastAccess;
+
+    private Candidate(String userId, Image image) {
+      this.userId = userId;
+      this.image = image;
+      this.lastAccess = image.lastAccess;
+    }
+  }
+
+  private static final class Image {
+    private final Secret source;
+    private final QrCodeFormat format;
+    private final byte[] content;
+    private final String contentType;
+    private final String etag;
+    private volatile long lastAccess;
+
+    private Image(Secret source, QrCodeFormat format, byte[] content, long lastAccess) {
+      this.source = source;
+      this.format = format;
+      this.content = content;
+      this.contentType = format.getContentType();
+      this.etag = "\"" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "\"";
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Remembers the last TOTP time step accepted for each user, so that a code cannot be used twice
+ * within its validity window. Accepting a code is a compare and set of the user's entry.
+ * Entries older than the validity window can no longer reject anything and are dropped, which
+ * keeps the table to recently active users, up to a hard bound. The table is written to a small binary file on
+ * shutdown and periodically, so that a code used just before a restart cannot be replayed after it.
+ */
+public final class MoTotpReplayGuard {
+  private static final Logger LOGGER = Logger.getLogger(MoTotpReplayGuard.class.getName());
+  private static final String SNAPSHOT_FILE = "miniorange-totp-replay-guard.bin";
+  private static final int SNAPSHOT_VERSION = 1;
+  private static final int MAX_ENTRIES =
+      SystemProperties.getInteger(MoTotpReplayGuard.class.getName() + ".maxEntries", 100000);
+
+  private static final Map<String, Long> lastAcceptedSteps = new ConcurrentHashMap<>();
+  private static volatile boolean dirty;
+
+  private MoTotpReplayGuard() {}
+
+  /**
+   * Record that a user presented a code for a time step.
+   * @return false if a code from the same or a later time step was already accepted
+   */
+  public static boolean tryAccept(String userId, long step) {
+    Long boxedStep = step;
+    while (true) {
+      Long lastAccepted = lastAcceptedSteps.get(userId);
+      if (lastAccepted == null) {
+        if (isFull()) {
+          LOGGER.warning("TOTP replay table is full, refusing code for " + userId);
+          return false;
+        }
+        if (lastAcceptedSteps.putIfAbsent(userId, boxedStep) == null) {
+          break;
+        }
+      } else if (lastAccepted >= step) {
+        LOGGER.fine("Rejected replayed TOTP code for " + userId);
+        return false;
+      } else if (lastAcceptedSteps.replace(userId, lastAccepted, boxedStep)) {
+        // Compare and set, a concurrent code or eviction of the entry makes this retry
+        break;
+      }
+    }
+    dirty = true;
+    return true;
+  }
+
+  /**
+   * The table holds at most {@code maxEntries} users. When it is full of entries that are still
+   * valid, codes of users without an entry are refused rather than letting a code be replayed.
+   */
+  private static boolean isFull() {
+    if (lastAcceptedSteps.size() < MAX_ENTRIES) {
+      return false;
+    }
+    evictStale();
+    return lastAcceptedSteps.size() >= MAX_ENTRIES;
+  }
+
+  /**
+   * Forget the user's last accepted step, used when their TOTP secret is reset.
+   */
+  public static void forget(String userId) {
+    if (lastAcceptedSteps.remove(userId) != null) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Drop entries whose step is too old to match any code that is still valid.
+   * @return the number of entries dropped
+   */
+  public static int evictStale() {
+    long oldestValidStep = oldestValidStep();
+    int removed = 0;
+    for (Map.Entry<String, Long> entry : lastAcceptedSteps.entrySet()) {
+      Long step = entry.getValue();
+      // Only removed if no newer step was accepted since it was read
+      if (step < oldestValidStep && lastAcceptedSteps.remove(entry.getKey(), step)) {
+        removed++;
+      }
+    }
+    if (removed > 0) {
+      dirty = true;
+    }
+    return removed;
+  }
+
+  public static int size() {
+    return lastAcceptedSteps.size();
+  }
+
+  @Initializer(after = InitMilestone.PLUGINS_STARTED)
+  public static void load() {
+    File file = getSnapshotFile();
+    if (!file.exists()) {
+      return;
+    }
+    long oldestValidStep = oldestValidStep();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      if (in.readInt() != SNAPSHOT_VERSION) {
+        LOGGER.fine("Ignoring TOTP replay snapshot with unknown version");
+        return;
+      }
+      int count = in.readInt();
+      int loaded = 0;
+      for (int i = 0; i < count; i++) {
+        String userId = in.readUTF();
+        long step = in.readLong();
+        if (step >= oldestValidStep) {
+          lastAcceptedSteps.merge(userId, step, Math::max);
+          loaded++;
+        }
+      }
+      LOGGER.fine("Loaded " + loaded + " TOTP replay entries");
+    } catch (IOException e) {
+      LOGGER.fine("Error in loading TOTP replay snapshot " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write the table to disk if an entry was accepted, forgotten or evicted since the last write.
+   */
+  public static void save() {
+    evictStale();
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+
+    File file = getSnapshotFile();
+    Path temp = file.toPath().resolveSibling(SNAPSHOT_FILE + ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        Map<String, Long> snapshot = new HashMap<>(lastAcceptedSteps);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue());
+        }
+      }
+      Files.move(
+          temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      dirty = true;
+      LOGGER.fine("Error in saving TOTP replay snapshot " + e.getMessage());
+    }
+  }
+
+  @Terminator
+  public static void shutdown() {
+    save();
+  }
+
+  // A learned clock drift lets codes match up to the maximum drift beyond the window
+  private static long oldestValidStep() {
+    return MoTotpUtil.currentTimeStep()
+        - (MoTotpConfig.getMaxDriftSteps() + MoTotpUtil.getWindowSteps());
+  }
+
+  private static File getSnapshotFile() {
+    return new File(Jenkins.get().getRootDir(), SNAPSHOT_FILE);
+  }
+}
@@ -21,8 +21,8 @@
  */
 package io.jenkins.plugins.twofactor.jenkins;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.UtilityGlobalConstants.SESSION_2FA_VERIFICATION;
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_USER_AUTH;
+import static io.jenkins.plugins.twofactor.jenkins.MoFilter.getSessionVerificationKey;
 import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
 import static jenkins.model.Jenkins.get;
 
@@ -32,16 +32,20 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.model.RootAction;
 import hudson.model.User;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoOtpMailSender;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoOtpOverEmailAuth;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoSecurityQuestionAuth;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth.MoTotpAuth;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoOtpOverEmailConfig;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoSecurityQuestionConfig;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
-import java.util.HashMap;
+import io.jenkins.plugins.twofactor.jenkins.util.MoChallengeStore;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -51,9 +55,16 @@ import javax.servlet.http.HttpSession;
 @Extension
 public class MoUserAuth implements RootAction, Describable<MoUserAuth> {
   private static final Logger LOGGER = Logger.getLogger(MoUserAuth.class.getName());
-  Map<String, MoSecurityQuestionAuth> moSecurityQuestionAuthMap = new HashMap<>();
-  Map<String, MoOtpOverEmailAuth> moOtpOverEmailAuthMap = new HashMap<>();
-  Map<String, MoTotpAuth> moTotpAuthMap = new HashMap<>();
+  // In-flight challenges are kept per session so that two logins of the same user do not share
+  // state, and expire so that abandoned logins are reclaimed by MoTfaStateCleanup
+  private static final long CHALLENGE_TTL_MINUTES =
+      SystemProperties.getLong(MoUserAuth.class.getName() + ".challengeTtlMinutes", 30L);
+  private final MoChallengeStore<MoSecurityQuestionAuth> moSecurityQuestionAuthStore =
+      new MoChallengeStore<>(CHALLENGE_TTL_MINUTES, TimeUnit.MINUTES);
+  private final MoChallengeStore<MoOtpOverEmailAuth> moOtpOverEmailAuthStore =
+      new MoChallengeStore<>(CHALLENGE_TTL_MINUTES, TimeUnit.MINUTES);
+  private final MoChallengeStore<MoTotpAuth> moTotpAuthStore =
+      new MoChallengeStore<>(CHALLENGE_TTL_MINUTES, TimeUnit.MINUTES);
 
   @Override
   public String getIconFileName() {
@@ -89,32 +100,52 @@ public class MoUserAuth implements RootAction, Describable<MoUserAuth> {
 
   @SuppressWarnings("unused")
   public MoSecurityQuestionAuth getSecurityQuestionAuth() {
-    if (moSecurityQuestionAuthMap.get(getUserId()) == null) {
-      moSecurityQuestionAuthMap.put(getUserId(), new MoSecurityQuestionAuth());
-    }
-    return moSecurityQuestionAuthMap.get(getUserId());
+    return getChallenge(moSecurityQuestionAuthStore, MoSecurityQuestionAuth::new);
   }
 
   @SuppressWarnings("unused")
   public MoOtpOverEmailAuth getOtpOverEmailAuth() {
-    if (moOtpOverEmailAuthMap.get(getUserId()) == null) {
-      moOtpOverEmailAuthMap.put(getUserId(), new MoOtpOverEmailAuth());
-    }
-    return moOtpOverEmailAuthMap.get(getUserId());
+    return getChallenge(moOtpOverEmailAuthStore, MoOtpOverEmailAuth::new);
   }
 
   @SuppressWarnings("unused")
   public MoTotpAuth getTotpAuth() {
-    if (moTotpAuthMap.get(getUserId()) == null) {
-      moTotpAuthMap.put(getUserId(), new MoTotpAuth());
-    }
-    return moTotpAuthMap.get(getUserId());
+    return getChallenge(moTotpAuthStore, MoTotpAuth::new);
+  }
+
+  private <T> T getChallenge(MoChallengeStore<T> store, Supplier<T> factory) {
+    String sessionId = Stapler.getCurrentRequest().getSession().getId();
+    String userId = getUserId();
+    MoTfaSessionListener.register(userId, sessionId);
+    return store.getOrCreate(sessionId, userId, factory);
+  }
+
+  /**
+   * Drop the authentication objects of a session.
+   * @return the number of objects dropped
+   */
+  public int cleanUserAuthResource(String sessionId) {
+    int removed = 0;
+    if (moSecurityQuestionAuthStore.remove(sessionId)) removed++;
+    if (moOtpOverEmailAuthStore.remove(sessionId)) removed++;
+    if (moTotpAuthStore.remove(sessionId)) removed++;
+    return removed;
+  }
+
+  /**
+   * Drop authentication objects whose time to live has passed.
+   * @return the number of objects dropped
+   */
+  public int evictExpiredChallenges() {
+    return moSecurityQuestionAuthStore.evictExpired()
+        + moOtpOverEmailAuthStore.evictExpired()
+        + moTotpAuthStore.evictExpired();
   }
 
-  public void cleanUserAuthResource(String userId) {
-    moSecurityQuestionAuthMap.remove(userId);
-    moOtpOverEmailAuthMap.remove(userId);
-    moTotpAuthMap.remove(userId);
+  public int getChallengeCount() {
+    return moSecurityQuestionAuthStore.size()
+        + moOtpOverEmailAuthStore.size()
+        + moTotpAuthStore.size();
   }
 
   public boolean showSecurityQuestionForConfiguration() {
@@ -123,7 +154,7 @@ public class MoUserAuth implements RootAction, Describable<MoUserAuth> {
     MoSecurityQuestionConfig securityQuestionConfig =
         user.getProperty(MoSecurityQuestionConfig.class);
     boolean isConfigured = securityQuestionConfig != null && securityQuestionConfig.isConfigured();
-    boolean isEnabled = MoGlobalConfig.get().isEnableSecurityQuestionsAuthentication();
+    boolean isEnabled = MoTfaPolicySnapshot.current().isEnableSecurityQuestionsAuthentication();
     return isConfigured && isEnabled;
   }
 
@@ -133,17 +164,25 @@ public class MoUserAuth implements RootAction, Describable<MoUserAuth> {
     assert user != null;
     MoOtpOverEmailConfig otpOverEmailConfig = user.getProperty(MoOtpOverEmailConfig.class);
     boolean isConfigured = otpOverEmailConfig != null && otpOverEmailConfig.isConfigured();
-    boolean isEnabled = MoGlobalConfig.get().isEnableOtpOverEmailAuthentication();
+    boolean isEnabled = MoTfaPolicySnapshot.current().isEnableOtpOverEmailAuthentication();
     return isConfigured && isEnabled;
   }
 
+  /**
+   * @return false while OTP emails cannot be delivered, so that another method is offered
+   */
+  @SuppressWarnings("unused")
+  public boolean isOtpOverEmailAvailable() {
+    return MoOtpMailSender.isAvailable();
+  }
+
   @SuppressWarnings("unused")
   public boolean showTotpForConfiguration() {
     User user = User.current();
     assert user != null;
     MoTotpConfig totpConfig = user.getProperty(MoTotpConfig.class);
     boolean isConfigured = totpConfig != null && totpConfig.isConfigured();
-    boolean isEnabled = MoGlobalConfig.get().isEnableTotpAuthentication();
+    boolean isEnabled = MoTfaPolicySnapshot.current().isEnableTotpAuthentication();
     return isConfigured && isEnabled;
   }
 
@@ -152,10 +191,11 @@ public class MoUserAuth implements RootAction, Describable<MoUserAuth> {
     if (session != null) {
       redirectUrl = (String) session.getAttribute("tfaRelayState");
       session.removeAttribute("tfaRelayState");
-      session.setAttribute(user.getId() + SESSION_2FA_VERIFICATION.getKey(), "true");
-      userAuthenticationStatus.put(user.getId(), true);
+      session.setAttribute(getSessionVerificationKey(user.getId()), "true");
+      userAuthenticationStatus.update(user.getId(), true);
+      MoTfaSessionListener.register(user.getId(), session.getId());
       MoUserAuth moUserAuth = ExtensionList.lookupSingleton(MoUserAuth.class);
-      moUserAuth.cleanUserAuthResource(user.getId());
+      moUserAuth.cleanUserAuthResource(session.getId());
       showWrongCredentialWarning.put(user.getId(), false);
     } else {
       LOGGER.fine("Session is null, hence not authenticating the user");
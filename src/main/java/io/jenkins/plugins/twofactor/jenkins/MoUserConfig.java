@@ -21,9 +21,7 @@
  */
 package io.jenkins.plugins.twofactor.jenkins;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdminConfiguration.ENABLE_2FA_FOR_ALL_USERS;
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_USER_CONFIG;
-import static io.jenkins.plugins.twofactor.jenkins.MoFilter.moPluginSettings;
 import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
 import static jenkins.model.Jenkins.get;
 
@@ -44,18 +42,18 @@ import org.springframework.lang.NonNull;
 @Extension
 public class MoUserConfig extends UserProperty implements Action {
   private static final Logger LOGGER = Logger.getLogger(MoUserConfig.class.getName());
+  private static final Pattern USER_PAGE_PATTERN = Pattern.compile(".*/user/([^/]+).*");
 
   @Override
   public String getIconFileName() {
     try {
       User user = User.current();
       if (user == null
-          || !moPluginSettings.getOrDefault(ENABLE_2FA_FOR_ALL_USERS.getKey(), false)) {
+          || !MoTfaPolicySnapshot.current().isEnableTfa()) {
         return null;
       }
       StaplerRequest request = Stapler.getCurrentRequest();
-      String regex = ".*/user/([^/]+).*";
-      Matcher matcher = Pattern.compile(regex).matcher(request.getRequestURI());
+      Matcher matcher = USER_PAGE_PATTERN.matcher(request.getRequestURI());
       if (matcher.matches() && user.getId().equals(matcher.group(1))) {
         return "/plugin/miniorange-two-factor/images/tfaIcon.png";
       }
@@ -77,7 +75,7 @@ public class MoUserConfig extends UserProperty implements Action {
   }
 
   public boolean isSecurityQuestionConfigurationIsEnabled() {
-    return MoGlobalConfig.get().isEnableSecurityQuestionsAuthentication();
+    return MoTfaPolicySnapshot.current().isEnableSecurityQuestionsAuthentication();
   }
   public static String getContextPath(){
     return MoUserAuth.getContextPath();
@@ -91,7 +89,7 @@ public class MoUserConfig extends UserProperty implements Action {
   }
 
   public boolean isOtpOverEmailIsEnabled() {
-    return MoGlobalConfig.get().isEnableOtpOverEmailAuthentication();
+    return MoTfaPolicySnapshot.current().isEnableOtpOverEmailAuthentication();
   }
 
   public boolean showOtpOverEmailForConfiguration() {
@@ -102,7 +100,7 @@ public class MoUserConfig extends UserProperty implements Action {
   }
 
   public boolean isTotpIsEnabled() {
-    return MoGlobalConfig.get().isEnableTotpAuthentication();
+    return MoTfaPolicySnapshot.current().isEnableTotpAuthentication();
   }
 
   public boolean showTotpForConfiguration() {
@@ -116,7 +114,7 @@ public class MoUserConfig extends UserProperty implements Action {
   public boolean isUserAuthenticatedFromTfa() {
     User user = User.current();
     assert user != null;
-    return userAuthenticationStatus.getOrDefault(user.getId(), false);
+    return userAuthenticationStatus.isAuthenticated(user.getId());
   }
 
   @SuppressWarnings("unused")
@@ -153,8 +151,7 @@ public class MoUserConfig extends UserProperty implements Action {
 
     @SuppressWarnings("unused")
     public Boolean showInUserProfile() {
-      return moPluginSettings.getOrDefault(
-          ENABLE_2FA_FOR_ALL_USERS.getKey(), false);
+      return MoTfaPolicySnapshot.current().isEnableTfa();
     }
     public String getContextPath() {
       return MoUserAuth.getContextPath();
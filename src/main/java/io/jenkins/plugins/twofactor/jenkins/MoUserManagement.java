@@ -12,18 +12,23 @@ import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
+import org.kohsuke.stapler.verb.GET;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Array;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_TFA_USER_MANAGEMENT;
+import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_TOTP_CONFIG;
 
 public class MoUserManagement implements Action, Describable<MoUserManagement> {
     private static final Logger LOGGER = Logger.getLogger(MoUserManagement.class.getName());
@@ -47,7 +52,7 @@ public class MoUserManagement implements Action, Describable<MoUserManagement> {
     }
 
     public Boolean getStatus(String userID){
-        return MoGlobalConfig.get().getEnableTfa();
+        return MoTfaPolicySnapshot.current().isEnableTfa();
     }
 
     /**
@@ -57,9 +62,7 @@ public class MoUserManagement implements Action, Describable<MoUserManagement> {
         if (user == null) {
             return false;
         }
-        List<String> bypassList = MoGlobalConfig.get().getBypassUsersList();
-        return bypassList.stream()
-                .anyMatch(u -> u.equalsIgnoreCase(user.getId()));
+        return MoTfaPolicySnapshot.current().isBypassUser(user.getId());
     }
 
     /**
@@ -162,6 +165,84 @@ public class MoUserManagement implements Action, Describable<MoUserManagement> {
         FormApply.success(req.getReferer()).generateResponse(req, rsp, null);
     }
 
+    /**
+     * Generate TOTP secrets for the selected users in the background
+     */
+    @SuppressWarnings("unused")
+    @RequirePOST
+    public HttpResponse doProvisionTotp(StaplerRequest req) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        String[] selectedUsers = req.getParameterValues("selectedUsers");
+        if (selectedUsers == null || selectedUsers.length == 0) {
+            return HttpResponses.errorJSON("Select at least one user to provision");
+        }
+        return HttpResponses.okJSON(toJson(MoTotpProvisioner.start(Arrays.asList(selectedUsers))));
+    }
+
+    /**
+     * Report the progress of the latest TOTP provisioning, polled by the user management page
+     */
+    @SuppressWarnings("unused")
+    @GET
+    public HttpResponse doProvisionStatus() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        MoTotpProvisioner.Job job = MoTotpProvisioner.getLatest();
+        if (job == null) {
+            JSONObject json = new JSONObject();
+            json.put("state", "NONE");
+            return HttpResponses.okJSON(json);
+        }
+        return HttpResponses.okJSON(toJson(job));
+    }
+
+    /**
+     * Export the TOTP setup page of every user of the latest provisioning who has not finished
+     * enrolling yet, as CSV. The links lead to the user's own setup page, secrets are never exported.
+     */
+    @SuppressWarnings("unused")
+    @GET
+    public void doProvisionExport(StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        MoTotpProvisioner.Job job = MoTotpProvisioner.getLatest();
+        String rootUrl = Jenkins.get().getRootUrl();
+        rsp.setContentType("text/csv;charset=UTF-8");
+        rsp.setHeader("Content-Disposition", "attachment; filename=totp-enrollment-links.csv");
+        PrintWriter writer = rsp.getWriter();
+        writer.println("user,enrollmentLink");
+        if (job != null) {
+            for (String userId : job.getUserIds()) {
+                User user = User.getById(userId, false);
+                if (user == null || hasTotpConfigured(user)) {
+                    continue;
+                }
+                String link = (rootUrl != null ? rootUrl : "") + user.getUrl() + "/" + MO_TOTP_CONFIG.getUrl() + "/";
+                writer.println(toCsv(userId) + "," + toCsv(link));
+            }
+        }
+        writer.flush();
+    }
+
+    private static JSONObject toJson(MoTotpProvisioner.Job job) {
+        JSONObject json = new JSONObject();
+        json.put("state", job.isFinished() ? "FINISHED" : "RUNNING");
+        json.put("finished", job.isFinished());
+        json.put("total", job.getTotal());
+        json.put("processed", job.getProcessed());
+        json.put("provisioned", job.getProvisioned());
+        json.put("skipped", job.getSkipped());
+        json.put("failed", job.getFailed());
+        return json;
+    }
+
+    // Cells a spreadsheet would evaluate as a formula are prefixed with a quote, as user ids are
+    // chosen by users and the file is opened by an admin
+    static String toCsv(String value) {
+        if (!value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) >= 0) {
+            value = "'" + value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
     /**
      * Get 2FA status for a user
      */
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth;
+
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jakarta.mail.internet.AddressException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * Sends OTP emails from a small bounded pool of background threads so that a slow SMTP relay
+ * never holds a request thread. Failed deliveries are retried with exponential backoff, and the
+ * latest delivery of each user is tracked so that the OTP page can report its progress.
+ */
+public final class MoOtpMailDispatcher {
+  private static final Logger LOGGER = Logger.getLogger(MoOtpMailDispatcher.class.getName());
+  private static final int THREADS =
+      SystemProperties.getInteger(MoOtpMailDispatcher.class.getName() + ".threads", 4);
+  private static final int QUEUE_CAPACITY =
+      SystemProperties.getInteger(MoOtpMailDispatcher.class.getName() + ".queueCapacity", 200);
+  private static final int MAX_ATTEMPTS =
+      SystemProperties.getInteger(MoOtpMailDispatcher.class.getName() + ".maxAttempts", 3);
+  private static final long INITIAL_BACKOFF_MILLIS =
+      SystemProperties.getLong(MoOtpMailDispatcher.class.getName() + ".initialBackoffMillis", 2000L);
+  // Finished deliveries are kept long enough for the OTP page to show their outcome
+  private static final long STATUS_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+  private static final ThreadPoolExecutor executor = createExecutor();
+  private static final Map<String, DeliveryStatus> deliveries = new ConcurrentHashMap<>();
+  private static final LongAdder collapsedSends = new LongAdder();
+
+  private MoOtpMailDispatcher() {}
+
+  /** Sends one message, throwing if the relay did not accept it. */
+  @FunctionalInterface
+  public interface Delivery {
+    void send() throws Exception;
+  }
+
+  public enum DeliveryState {
+    QUEUED,
+    SENDING,
+    RETRYING,
+    SENT,
+    FAILED;
+
+    public boolean isFinished() {
+      return this == SENT || this == FAILED;
+    }
+  }
+
+  private static ThreadPoolExecutor createExecutor() {
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            THREADS,
+            THREADS,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+            new NamingThreadFactory(new DaemonThreadFactory(), "MoOtpMailDispatcher"));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Queue an OTP email for a user, unless one is already queued or being sent, in which case the
+   * call joins that delivery. The message is only prepared when a new delivery is started, so a
+   * collapsed call does not issue a new OTP.
+   * @param deliveryFactory prepares the message to send
+   * @return the status tracking the delivery
+   */
+  public static DeliveryStatus dispatch(String userId, Supplier<Delivery> deliveryFactory) {
+    DeliveryStatus created = new DeliveryStatus();
+    DeliveryStatus status =
+        deliveries.compute(
+            userId,
+            (key, existing) ->
+                existing != null && !existing.getState().isFinished() ? existing : created);
+    if (status != created) {
+      collapsedSends.increment();
+      LOGGER.fine("OTP mail for " + userId + " is already in flight, not sending another");
+      return status;
+    }
+
+    Delivery delivery;
+    try {
+      delivery = deliveryFactory.get();
+    } catch (RuntimeException e) {
+      status.update(DeliveryState.FAILED, "The OTP email could not be prepared");
+      throw e;
+    }
+    submit(userId, delivery, status);
+    return status;
+  }
+
+  /**
+   * @return the number of send requests that joined a delivery already in flight
+   */
+  public static long getCollapsedSendCount() {
+    return collapsedSends.sum();
+  }
+
+  /**
+   * @return the status of the latest delivery for a user, or null if nothing was sent recently
+   */
+  public static DeliveryStatus getStatus(String userId) {
+    return deliveries.get(userId);
+  }
+
+  public static boolean clearStatus(String userId) {
+    return deliveries.remove(userId) != null;
+  }
+
+  /**
+   * Drop the status of deliveries that finished more than the retention period ago.
+   * @return the number of statuses dropped
+   */
+  public static int evictFinished() {
+    long now = System.currentTimeMillis();
+    int removed = 0;
+    for (Map.Entry<String, DeliveryStatus> entry : deliveries.entrySet()) {
+      DeliveryStatus status = entry.getValue();
+      if (status.getState().isFinished()
+          && now - status.getUpdatedAt() > STATUS_RETENTION_MILLIS
+          && deliveries.remove(entry.getKey(), status)) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  public static int getQueuedCount() {
+    return executor.getQueue().size();
+  }
+
+  private static void submit(String userId, Delivery delivery, DeliveryStatus status) {
+    try {
+      executor.execute(() -> attempt(userId, delivery, status));
+    } catch (RejectedExecutionException e) {
+      LOGGER.fine("OTP mail queue is full, dropping mail for " + userId);
+      status.update(DeliveryState.FAILED, "The mail queue is full, please try again shortly");
+    }
+  }
+
+  private static void attempt(String userId, Delivery delivery, DeliveryStatus status) {
+    if (deliveries.get(userId) != status) {
+      LOGGER.fine("OTP mail for " + userId + " was cancelled, skipping");
+      return;
+    }
+
+    status.startAttempt();
+    try {
+      delivery.send();
+      status.update(DeliveryState.SENT, null);
+      LOGGER.fine("OTP mail sent to " + userId + " after " + status.getAttempts() + " attempt(s)");
+    } catch (Exception e) {
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine(
+            "Attempt " + status.getAttempts() + " to send OTP mail to " + userId
+                + " failed, error is " + e.getMessage());
+      }
+      if (e instanceof MoOtpMailSender.MailUnavailableException) {
+        status.update(DeliveryState.FAILED, "Email delivery is temporarily unavailable");
+        return;
+      }
+      // A malformed address will not get better by retrying
+      boolean permanent = e instanceof AddressException || e instanceof UnsupportedEncodingException;
+      if (permanent || status.getAttempts() >= MAX_ATTEMPTS) {
+        status.update(DeliveryState.FAILED, "The OTP email could not be sent");
+        return;
+      }
+
+      status.update(DeliveryState.RETRYING, null);
+      long backoff = INITIAL_BACKOFF_MILLIS << (status.getAttempts() - 1);
+      Timer.get().schedule(() -> submit(userId, delivery, status), backoff, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Terminator
+  public static void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** Progress of one OTP email. */
+  public static final class DeliveryStatus {
+    private volatile DeliveryState state = DeliveryState.QUEUED;
+    private final AtomicInteger attempts = new AtomicInteger();
+    private volatile String message;
+    private volatile long updatedAt = System.currentTimeMillis();
+
+    private void startAttempt() {
+      attempts.incrementAndGet();
+      update(DeliveryState.SENDING, null);
+    }
+
+    private void update(DeliveryState state, String message) {
+      this.state = state;
+      this.message = message;
+      this.updatedAt = System.currentTimeMillis();
+    }
+
+    public DeliveryState getState() {
+      return state;
+    }
+
+    public int getAttempts() {
+      return attempts.get();
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    public long getUpdatedAt() {
+      return updatedAt;
+    }
+  }
+}
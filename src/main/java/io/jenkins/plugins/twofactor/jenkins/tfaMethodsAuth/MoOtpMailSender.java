@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth;
+
+import static hudson.tasks.Mailer.stringToAddress;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.init.Terminator;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Mailer;
+import hudson.tasks.SMTPAuthentication;
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.jenkins.MoTfaPolicySnapshot;
+import io.jenkins.plugins.twofactor.jenkins.util.MoCircuitBreaker;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Transport;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Sends OTP emails through a mail session that is built once from the Mailer settings and reused
+ * until those settings or the 2FA configuration change. Connected transports are kept in a small
+ * pool so that a burst of OTP emails does not pay for a new TCP and TLS handshake per message;
+ * pooled connections that stay idle past the timeout are closed. Delivery goes through a circuit
+ * breaker, so an unreachable relay fails fast instead of holding a connection timeout per email.
+ */
+@SuppressWarnings("unused")
+@Extension
+public class MoOtpMailSender extends SaveableListener {
+  private static final Logger LOGGER = Logger.getLogger(MoOtpMailSender.class.getName());
+  private static final int MAX_IDLE_TRANSPORTS =
+      SystemProperties.getInteger(MoOtpMailSender.class.getName() + ".maxIdleTransports", 2);
+  private static final long TRANSPORT_IDLE_TIMEOUT_MILLIS =
+      TimeUnit.SECONDS.toMillis(
+          SystemProperties.getLong(
+              MoOtpMailSender.class.getName() + ".transportIdleTimeoutSeconds", 60L));
+
+  private static final MoCircuitBreaker circuitBreaker =
+      new MoCircuitBreaker(
+          SystemProperties.getInteger(MoOtpMailSender.class.getName() + ".failureThreshold", 3),
+          SystemProperties.getLong(MoOtpMailSender.class.getName() + ".openDurationSeconds", 60L),
+          TimeUnit.SECONDS);
+
+  private static volatile MailContext context;
+
+  static {
+    MoTfaPolicySnapshot.subscribe(policy -> invalidate());
+  }
+
+  /**
+   * Send one OTP email, reusing a pooled connection when one is available.
+   */
+  static void send(
+      String senderEmailAddress, String recipientEmailAddress, String subject, String content)
+      throws MessagingException, UnsupportedEncodingException {
+    MailContext mailContext = getContext();
+    String charset = mailContext.charset;
+
+    jakarta.mail.internet.MimeMessage msg =
+        new jakarta.mail.internet.MimeMessage(mailContext.session);
+
+    msg.setSubject(subject);
+    msg.setContent(content, "text/html");
+    msg.setFrom(stringToAddress(senderEmailAddress, charset));
+    if (StringUtils.isNotBlank(recipientEmailAddress)) {
+      msg.setReplyTo(new jakarta.mail.Address[] {stringToAddress(recipientEmailAddress, charset)});
+    }
+
+    msg.setSentDate(new Date());
+    msg.setRecipient(
+        jakarta.mail.Message.RecipientType.TO, stringToAddress(recipientEmailAddress, charset));
+    msg.saveChanges();
+
+    if (!circuitBreaker.tryAcquire()) {
+      throw new MailUnavailableException();
+    }
+
+    boolean relayResponded = false;
+    boolean sent = false;
+    Transport transport = mailContext.pollIdle();
+    try {
+      if (transport != null) {
+        try {
+          transport.sendMessage(msg, msg.getAllRecipients());
+          sent = true;
+        } catch (SendFailedException e) {
+          throw e;
+        } catch (MessagingException e) {
+          // The relay may drop a pooled connection while it sits idle, which says nothing about
+          // its health, so the message is retried once on a fresh connection
+          LOGGER.fine("Pooled SMTP connection failed, retrying on a new one " + e.getMessage());
+          closeQuietly(transport);
+          transport = null;
+        }
+      }
+      if (!sent) {
+        transport = mailContext.connect();
+        transport.sendMessage(msg, msg.getAllRecipients());
+        sent = true;
+      }
+      relayResponded = true;
+    } catch (SendFailedException e) {
+      // The relay is up but refused the recipients, which says nothing about its health
+      relayResponded = true;
+      throw e;
+    } finally {
+      if (relayResponded) {
+        circuitBreaker.recordSuccess();
+      } else {
+        circuitBreaker.recordFailure();
+      }
+      if (transport != null) {
+        mailContext.release(transport, sent);
+      }
+    }
+  }
+
+  /**
+   * @return false while the circuit breaker is open because the relay kept failing
+   */
+  public static boolean isAvailable() {
+    return !circuitBreaker.isOpen();
+  }
+
+  public static MoCircuitBreaker.State getCircuitState() {
+    return circuitBreaker.getState();
+  }
+
+  /**
+   * @return the time at which the circuit breaker last opened, 0 if it is closed
+   */
+  public static long getCircuitOpenedAt() {
+    return circuitBreaker.getOpenedAt();
+  }
+
+  private static MailContext getContext() {
+    MailContext mailContext = context;
+    if (mailContext == null) {
+      synchronized (MoOtpMailSender.class) {
+        mailContext = context;
+        if (mailContext == null) {
+          LOGGER.fine("Building mail session for OTP emails");
+          mailContext = MailContext.create(Mailer.descriptor());
+          context = mailContext;
+        }
+      }
+    }
+    return mailContext;
+  }
+
+  /**
+   * Drop the cached mail session and close its pooled connections. The next email builds a new
+   * session from the current Mailer settings.
+   */
+  public static void invalidate() {
+    MailContext stale;
+    synchronized (MoOtpMailSender.class) {
+      stale = context;
+      context = null;
+    }
+    if (stale != null) {
+      stale.close();
+    }
+  }
+
+  /**
+   * Close pooled connections that have been idle for longer than the timeout.
+   * @return the number of connections closed
+   */
+  public static int evictIdleTransports() {
+    MailContext mailContext = context;
+    return mailContext != null ? mailContext.evictIdle(System.currentTimeMillis()) : 0;
+  }
+
+  @Terminator
+  public static void shutdown() {
+    invalidate();
+  }
+
+  @Override
+  public void onChange(Saveable o, XmlFile file) {
+    if (o instanceof Mailer.DescriptorImpl) {
+      LOGGER.fine("Mailer configuration changed, dropping cached OTP mail session");
+      invalidate();
+    }
+  }
+
+  private static jakarta.mail.Session createSession(
+      String smtpHost,
+      String smtpPort,
+      boolean useSsl,
+      boolean useTls,
+      String smtpAuthUserName,
+      Secret smtpAuthPassword) {
+    final String SMTP_PORT_PROPERTY = "mail.smtp.port";
+    final String SMTP_SOCKETFACTORY_PORT_PROPERTY = "mail.smtp.socketFactory.port";
+    final String SMTP_SSL_ENABLE_PROPERTY = "mail.smtp.ssl.enable";
+    final String SMTP_SSL_CHECKSERVERIDENTITY = "mail.smtp.ssl.checkserveridentity";
+
+    smtpHost = Util.fixEmptyAndTrim(smtpHost);
+    smtpPort = Util.fixEmptyAndTrim(smtpPort);
+    smtpAuthUserName = Util.fixEmptyAndTrim(smtpAuthUserName);
+
+    Properties props = new Properties(System.getProperties());
+    if (smtpHost != null) {
+      props.put("mail.smtp.host", smtpHost);
+    }
+    if (smtpPort != null) {
+      props.put(SMTP_PORT_PROPERTY, smtpPort);
+    }
+    if (useSsl) {
+      if (props.getProperty(SMTP_SOCKETFACTORY_PORT_PROPERTY) == null) {
+        String port = smtpPort == null ? "465" : smtpPort;
+        props.put(SMTP_PORT_PROPERTY, port);
+        props.put(SMTP_SOCKETFACTORY_PORT_PROPERTY, port);
+      }
+      if (props.getProperty(SMTP_SSL_ENABLE_PROPERTY) == null) {
+        props.put(SMTP_SSL_ENABLE_PROPERTY, "true");
+        props.put(SMTP_SSL_CHECKSERVERIDENTITY, true);
+      }
+      props.put("mail.smtp.socketFactory.fallback", "false");
+      if (props.getProperty("mail.smtp.ssl.checkserveridentity") == null) {
+        props.put("mail.smtp.ssl.checkserveridentity", "true");
+      }
+    }
+    if (useTls) {
+      if (props.getProperty(SMTP_SOCKETFACTORY_PORT_PROPERTY) == null) {
+        String port = smtpPort == null ? "587" : smtpPort;
+        props.put(SMTP_PORT_PROPERTY, port);
+        props.put(SMTP_SOCKETFACTORY_PORT_PROPERTY, port);
+      }
+      props.put("mail.smtp.starttls.enable", "true");
+      props.put("mail.smtp.starttls.required", "true");
+    }
+    if (smtpAuthUserName != null) props.put("mail.smtp.auth", "true");
+
+    props.put("mail.smtp.timeout", "60000");
+    props.put("mail.smtp.connectiontimeout", "60000");
+
+    return jakarta.mail.Session.getInstance(
+        props, getAuthenticator(smtpAuthUserName, Secret.toString(smtpAuthPassword)));
+  }
+
+  private static jakarta.mail.Authenticator getAuthenticator(
+      final String smtpAuthUserName, final String smtpAuthPassword) {
+    if (smtpAuthUserName == null) {
+      return null;
+    }
+    return new jakarta.mail.Authenticator() {
+      @Override
+      protected jakarta.mail.PasswordAuthentication getPasswordAuthentication() {
+        return new jakarta.mail.PasswordAuthentication(smtpAuthUserName, smtpAuthPassword);
+      }
+    };
+  }
+
+  private static void closeQuietly(Transport transport) {
+    try {
+      transport.close();
+    } catch (MessagingException e) {
+      LOGGER.fine("Error in closing SMTP connection " + e.getMessage());
+    }
+  }
+
+  /** A mail session built from one version of the Mailer settings, with its idle connections. */
+  private static final class MailContext {
+    private final jakarta.mail.Session session;
+    private final String charset;
+    private final String username;
+    private final String password;
+    // Most recently used first, so the oldest connections are the ones that age out
+    private final BlockingDeque<IdleTransport> idleTransports = new LinkedBlockingDeque<>();
+    private volatile boolean closed;
+
+    private MailContext(
+        jakarta.mail.Session session, String charset, String username, String password) {
+      this.session = session;
+      this.charset = charset;
+      this.username = username;
+      this.password = password;
+    }
+
+    private static MailContext create(Mailer.DescriptorImpl mailerDescriptor) {
+      SMTPAuthentication MailerAuthentication = mailerDescriptor.getAuthentication();
+      String username = MailerAuthentication != null ? MailerAuthentication.getUsername() : null;
+      Secret password = MailerAuthentication != null ? MailerAuthentication.getPassword() : null;
+      jakarta.mail.Session session =
+          createSession(
+              mailerDescriptor.getSmtpHost(),
+              mailerDescriptor.getSmtpPort(),
+              mailerDescriptor.getUseSsl(),
+              mailerDescriptor.getUseTls(),
+              username,
+              password);
+      return new MailContext(
+          session,
+          mailerDescriptor.getCharset(),
+          Util.fixEmptyAndTrim(username),
+          Secret.toString(password));
+    }
+
+    /**
+     * @return a pooled connection that is still connected, or null if there is none
+     */
+    private Transport pollIdle() {
+      long now = System.currentTimeMillis();
+      IdleTransport idleTransport;
+      while ((idleTransport = idleTransports.pollFirst()) != null) {
+        if (now - idleTransport.idleSince < TRANSPORT_IDLE_TIMEOUT_MILLIS
+            && idleTransport.transport.isConnected()) {
+          return idleTransport.transport;
+        }
+        closeQuietly(idleTransport.transport);
+      }
+      return null;
+    }
+
+    private Transport connect() throws MessagingException {
+      Transport transport = session.getTransport("smtp");
+      if (username != null) {
+        transport.connect(username, password);
+      } else {
+        transport.connect();
+      }
+      return transport;
+    }
+
+    private void release(Transport transport, boolean reusable) {
+      if (!reusable || closed || idleTransports.size() >= MAX_IDLE_TRANSPORTS) {
+        closeQuietly(transport);
+        return;
+      }
+      idleTransports.offerFirst(new IdleTransport(transport, System.currentTimeMillis()));
+      // The context may have been closed while the connection was being returned
+      if (closed) {
+        close();
+      }
+    }
+
+    private int evictIdle(long now) {
+      int closedCount = 0;
+      Iterator<IdleTransport> iterator = idleTransports.descendingIterator();
+      while (iterator.hasNext()) {
+        IdleTransport idleTransport = iterator.next();
+        if (now - idleTransport.idleSince >= TRANSPORT_IDLE_TIMEOUT_MILLIS
+            && idleTransports.removeLastOccurrence(idleTransport)) {
+          closeQuietly(idleTransport.transport);
+          closedCount++;
+        }
+      }
+      return closedCount;
+    }
+
+    private void close() {
+      closed = true;
+      IdleTransport idleTransport;
+      while ((idleTransport = idleTransports.pollFirst()) != null) {
+        closeQuietly(idleTransport.transport);
+      }
+    }
+  }
+
+  /** Thrown without contacting the relay while the circuit breaker is open. */
+  public static final class MailUnavailableException extends MessagingException {
+    private static final long serialVersionUID = 1L;
+
+    MailUnavailableException() {
+      super("OTP mail delivery is temporarily unavailable");
+    }
+  }
+
+  private static final class IdleTransport {
+    private final Transport transport;
+    private final long idleSince;
+
+    private IdleTransport(Transport transport, long idleSince) {
+      this.transport = transport;
+      this.idleSince = idleSince;
+    }
+  }
+}
@@ -21,41 +21,61 @@
  */
 package io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth;
 
-import static hudson.tasks.Mailer.stringToAddress;
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdvanceSettingsConstants.DEFAULT_OTP_EMAIL_SUBJECT;
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdvanceSettingsConstants.DEFAULT_OTP_EMAIL_TEMPLATE;
 import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
 import static io.jenkins.plugins.twofactor.jenkins.MoUserAuth.allow2FaAccessAndRedirect;
-import static org.apache.commons.lang.StringUtils.isBlank;
-import hudson.Util;
+import hudson.ExtensionList;
 import hudson.model.Action;
 import hudson.model.User;
-import hudson.tasks.Mailer;
-import hudson.tasks.SMTPAuthentication;
 import hudson.util.FormApply;
-import hudson.util.Secret;
 import io.jenkins.plugins.twofactor.constants.MoPluginUrls;
-import io.jenkins.plugins.twofactor.jenkins.MoGlobalConfig;
+import io.jenkins.plugins.twofactor.jenkins.MoTfaPolicySnapshot;
 import io.jenkins.plugins.twofactor.jenkins.MoUserAuth;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoOtpOverEmailConfig;
+import io.jenkins.plugins.twofactor.jenkins.util.MoOtpLedger;
+import io.jenkins.plugins.twofactor.jenkins.util.MoRateLimiter;
 import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
+import org.kohsuke.stapler.verb.GET;
 
 public class MoOtpOverEmailAuth implements Action {
 
   private static final Logger LOGGER = Logger.getLogger(MoOtpOverEmailAuth.class.getName());
-  private static final Map<String, String> sentOtp = new HashMap<>();
-  public Map<String, Boolean> showWrongCredentialWarning = new HashMap<>();
-  private static final Random RANDOM = new Random();
+  private static final MoOtpLedger otpLedger =
+      new MoOtpLedger(
+          SystemProperties.getLong(MoOtpOverEmailAuth.class.getName() + ".otpTtlMinutes", 10L),
+          TimeUnit.MINUTES,
+          SystemProperties.getInteger(MoOtpOverEmailAuth.class.getName() + ".maxOutstandingOtps", 3));
+  // Resends and verification attempts are throttled per user to protect the mail relay and
+  // to slow down guessing
+  private static final MoRateLimiter resendLimiter =
+      new MoRateLimiter(
+          SystemProperties.getInteger(MoOtpOverEmailAuth.class.getName() + ".resendBurst", 3),
+          SystemProperties.getLong(MoOtpOverEmailAuth.class.getName() + ".resendIntervalSeconds", 60L),
+          TimeUnit.SECONDS);
+  private static final MoRateLimiter verifyLimiter =
+      new MoRateLimiter(
+          SystemProperties.getInteger(MoOtpOverEmailAuth.class.getName() + ".verifyBurst", 5),
+          SystemProperties.getLong(MoOtpOverEmailAuth.class.getName() + ".verifyIntervalSeconds", 30L),
+          TimeUnit.SECONDS);
+  public Map<String, Boolean> showWrongCredentialWarning = new ConcurrentHashMap<>();
+  private volatile boolean showThrottledWarning;
+  private static final SecureRandom RANDOM = new SecureRandom();
 
   private final User user;
 
@@ -81,9 +101,52 @@ public class MoOtpOverEmailAuth implements Action {
   public String getContextPath(){
     return MoUserAuth.getContextPath();
   }
+  /**
+   * Drop OTPs that expired without being used.
+   * @return the number of users whose OTPs all expired
+   */
+  public static int evictExpiredOtps() {
+    return otpLedger.evictExpired();
+  }
+
+  /**
+   * Drop throttling state of users whose limits have fully recovered.
+   * @return the number of entries dropped
+   */
+  public static int evictIdleThrottles() {
+    return resendLimiter.evictIdle() + verifyLimiter.evictIdle();
+  }
+
+  /**
+   * @return the number of OTP resends and verification attempts rejected by throttling
+   */
+  public static long getThrottledRequestCount() {
+    return resendLimiter.getRejectedCount() + verifyLimiter.getRejectedCount();
+  }
+
+  /**
+   * Drop the throttling state of a user whose limits have fully recovered.
+   * @return the number of entries dropped
+   */
+  public static int evictIdleThrottles(String userId) {
+    int removed = 0;
+    if (resendLimiter.evictIfIdle(userId)) removed++;
+    if (verifyLimiter.evictIfIdle(userId)) removed++;
+    return removed;
+  }
+
+  /**
+   * Forget the OTP sent to a user, if any.
+   * @return true if an OTP was outstanding
+   */
+  public static boolean clearSentOtp(String userId) {
+    MoOtpMailDispatcher.clearStatus(userId);
+    return otpLedger.clear(userId);
+  }
+
   @SuppressWarnings("unused")
   public boolean isOtpSentToUser() {
-    return !sentOtp.getOrDefault(user.getId(), "").isEmpty();
+    return otpLedger.hasOutstanding(user.getId());
   }
 
   public String getUserEmailAddress() {
@@ -97,7 +160,7 @@ public class MoOtpOverEmailAuth implements Action {
 
   @SuppressWarnings("unused")
   public boolean isUserAuthenticatedFromTfa() {
-    return userAuthenticationStatus.getOrDefault(user.getId(), false);
+    return userAuthenticationStatus.isAuthenticated(user.getId());
   }
 
   @SuppressWarnings("unused")
@@ -105,6 +168,28 @@ public class MoOtpOverEmailAuth implements Action {
     return showWrongCredentialWarning.getOrDefault(user.getId(), false);
   }
 
+  /**
+   * @return true while OTP emails cannot be delivered because the mail relay keeps failing
+   */
+  @SuppressWarnings("unused")
+  public boolean isMailDeliveryUnavailable() {
+    return !MoOtpMailSender.isAvailable();
+  }
+
+  /**
+   * @return true if the user can validate with another configured 2FA method instead
+   */
+  @SuppressWarnings("unused")
+  public boolean hasOtherMethodConfigured() {
+    MoUserAuth moUserAuth = ExtensionList.lookupSingleton(MoUserAuth.class);
+    return moUserAuth.showTotpForConfiguration() || moUserAuth.showSecurityQuestionForConfiguration();
+  }
+
+  @SuppressWarnings("unused")
+  public boolean getShowThrottledWarning() {
+    return showThrottledWarning;
+  }
+
   public boolean isOtpOverEmailConfigured() {
     MoOtpOverEmailConfig otpOverEmailConfig = user.getProperty(MoOtpOverEmailConfig.class);
     return otpOverEmailConfig != null && otpOverEmailConfig.isConfigured();
@@ -120,142 +205,52 @@ public class MoOtpOverEmailAuth implements Action {
     return String.valueOf(otp);
   }
 
-  private static jakarta.mail.Session createSession(
-      String smtpHost,
-      String smtpPort,
-      boolean useSsl,
-      boolean useTls,
-      String smtpAuthUserName,
-      Secret smtpAuthPassword) {
-    final String SMTP_PORT_PROPERTY = "mail.smtp.port";
-    final String SMTP_SOCKETFACTORY_PORT_PROPERTY = "mail.smtp.socketFactory.port";
-    final String SMTP_SSL_ENABLE_PROPERTY = "mail.smtp.ssl.enable";
-    final String SMTP_SSL_CHECKSERVERIDENTITY = "mail.smtp.ssl.checkserveridentity";
-
-    smtpHost = Util.fixEmptyAndTrim(smtpHost);
-    smtpPort = Util.fixEmptyAndTrim(smtpPort);
-    smtpAuthUserName = Util.fixEmptyAndTrim(smtpAuthUserName);
-
-    Properties props = new Properties(System.getProperties());
-    if (smtpHost != null) {
-      props.put("mail.smtp.host", smtpHost);
-    }
-    if (smtpPort != null) {
-      props.put(SMTP_PORT_PROPERTY, smtpPort);
-    }
-    if (useSsl) {
-      if (props.getProperty(SMTP_SOCKETFACTORY_PORT_PROPERTY) == null) {
-        String port = smtpPort == null ? "465" : smtpPort;
-        props.put(SMTP_PORT_PROPERTY, port);
-        props.put(SMTP_SOCKETFACTORY_PORT_PROPERTY, port);
-      }
-      if (props.getProperty(SMTP_SSL_ENABLE_PROPERTY) == null) {
-        props.put(SMTP_SSL_ENABLE_PROPERTY, "true");
-        props.put(SMTP_SSL_CHECKSERVERIDENTITY, true);
-      }
-      props.put("mail.smtp.socketFactory.fallback", "false");
-      if (props.getProperty("mail.smtp.ssl.checkserveridentity") == null) {
-        props.put("mail.smtp.ssl.checkserveridentity", "true");
-      }
-    }
-    if (useTls) {
-      if (props.getProperty(SMTP_SOCKETFACTORY_PORT_PROPERTY) == null) {
-        String port = smtpPort == null ? "587" : smtpPort;
-        props.put(SMTP_PORT_PROPERTY, port);
-        props.put(SMTP_SOCKETFACTORY_PORT_PROPERTY, port);
-      }
-      props.put("mail.smtp.starttls.enable", "true");
-      props.put("mail.smtp.starttls.required", "true");
-    }
-    if (smtpAuthUserName != null) props.put("mail.smtp.auth", "true");
-
-    props.put("mail.smtp.timeout", "60000");
-    props.put("mail.smtp.connectiontimeout", "60000");
-
-    return jakarta.mail.Session.getInstance(
-        props, getAuthenticator(smtpAuthUserName, Secret.toString(smtpAuthPassword)));
-  }
-
-  private static jakarta.mail.Authenticator getAuthenticator(
-      final String smtpAuthUserName, final String smtpAuthPassword) {
-    if (smtpAuthUserName == null) {
-      return null;
+  /**
+   * Create a new OTP for the user and queue the email carrying it. The email is sent by
+   * {@link MoOtpMailDispatcher}, so this returns without waiting for the SMTP relay. If an email
+   * for the user is still in flight, no new OTP is created and that email is awaited instead.
+   */
+  public void sendMail() {
+    if (!MoOtpMailSender.isAvailable()) {
+      LOGGER.fine("OTP mail delivery is unavailable, not sending mail to " + user.getId());
+      return;
     }
-    return new jakarta.mail.Authenticator() {
-      @Override
-      protected jakarta.mail.PasswordAuthentication getPasswordAuthentication() {
-        return new jakarta.mail.PasswordAuthentication(smtpAuthUserName, smtpAuthPassword);
-      }
-    };
+    LOGGER.fine("Queueing mail for otpOverEmail method");
+    MoOtpMailDispatcher.dispatch(user.getId(), this::prepareMail);
   }
 
-  public void sendMail() {
-    try {
-      LOGGER.fine("Sending mail for otpOverEmail method");
-
-      Mailer.DescriptorImpl mailerDescriptor = Mailer.descriptor();
-      String smtpHost = mailerDescriptor.getSmtpHost();
-      String senderEmailAddress = MoGlobalConfig.get().getOtpOverEmailDto().getSenderEmailAddress();
-      SMTPAuthentication MailerAuthentication = mailerDescriptor.getAuthentication();
-      String username = MailerAuthentication != null ? MailerAuthentication.getUsername() : null;
-      Secret password = MailerAuthentication != null ? MailerAuthentication.getPassword() : null;
-      boolean useSsl = mailerDescriptor.getUseSsl();
-      boolean useTls = mailerDescriptor.getUseTls();
-      String smtpPort = mailerDescriptor.getSmtpPort();
-      String charset = mailerDescriptor.getCharset();
-      String sendTestMailTo = getUserEmailAddress();
-
-      jakarta.mail.internet.MimeMessage msg =
-          new jakarta.mail.internet.MimeMessage(
-              createSession(smtpHost, smtpPort, useSsl, useTls, username, password));
-
-      String otpToSend = createOtp(5);
-      sentOtp.put(user.getId(), otpToSend);
-
-      String subject = MoGlobalConfig.get().getAdvancedSettings().getCustomOTPEmailSubject();
-      if(isBlank(subject))
-        subject = DEFAULT_OTP_EMAIL_SUBJECT.getValue();
-
-      String template = MoGlobalConfig.get().getAdvancedSettings().getCustomOTPEmailTemplate();
-
-      if(isBlank(template))
-        template = DEFAULT_OTP_EMAIL_TEMPLATE.getValue();
-
-      if (subject.contains("$username")) {
-        subject = subject.replace("$username", user.getId());
-      }
-
-      if (subject.contains("$otp")) {
-        subject = subject.replace("$otp", sentOtp.get(user.getId()));
-      }
+  private MoOtpMailDispatcher.Delivery prepareMail() {
+    MoTfaPolicySnapshot policy = MoTfaPolicySnapshot.current();
+    String otpToSend = createOtp(5);
+    otpLedger.record(user.getId(), otpToSend);
 
-      if (template.contains("$username")) {
-        template = template.replace("$username", user.getId());
-      }
+    // The subject is a plain text header, only the HTML body needs escaping
+    String mailSubject = policy.getOtpEmailSubject().render(user.getId(), otpToSend);
+    String mailContent = policy.getOtpEmailTemplate().renderHtml(user.getId(), otpToSend);
 
-      if (template.contains("$otp")) {
-        template = template.replace("$otp", sentOtp.get(user.getId()));
-      }
-      msg.setSubject(subject);
-      msg.setContent(template, "text/html");
-      msg.setFrom(stringToAddress(senderEmailAddress, charset));
-      if (StringUtils.isNotBlank(sendTestMailTo)) {
-        msg.setReplyTo(new jakarta.mail.Address[] {stringToAddress(sendTestMailTo, charset)});
-      }
-
-      msg.setSentDate(new Date());
-      msg.setRecipient(
-          jakarta.mail.Message.RecipientType.TO, stringToAddress(sendTestMailTo, charset));
+    String senderEmailAddress = policy.getSenderEmailAddress();
+    String recipientEmailAddress = getUserEmailAddress();
+    return () -> MoOtpMailSender.send(senderEmailAddress, recipientEmailAddress, mailSubject, mailContent);
+  }
 
-      jakarta.mail.Transport.send(msg);
-    }
-    catch (RuntimeException e) {
-      LOGGER.fine("Run time exception occur" + e.getMessage());
-      throw e;
-    }
-    catch (Exception e) {
-      LOGGER.fine("Failed in sending mail, error is " + e.getMessage());
+  /**
+   * Report the progress of the latest OTP email, polled by the OTP page while it is in flight.
+   */
+  @SuppressWarnings("unused")
+  @GET
+  public HttpResponse doDeliveryStatus() {
+    Jenkins.get().checkPermission(Jenkins.READ);
+    JSONObject json = new JSONObject();
+    MoOtpMailDispatcher.DeliveryStatus status = MoOtpMailDispatcher.getStatus(user.getId());
+    if (status == null) {
+      json.put("state", "NONE");
+      return HttpResponses.okJSON(json);
     }
+    json.put("state", status.getState().name());
+    json.put("finished", status.getState().isFinished());
+    json.put("attempts", status.getAttempts());
+    json.put("message", StringUtils.defaultString(status.getMessage()));
+    return HttpResponses.okJSON(json);
   }
 
   @SuppressWarnings("unused")
@@ -263,6 +258,12 @@ public class MoOtpOverEmailAuth implements Action {
   public void doResendOtp(StaplerRequest req, StaplerResponse rsp)
       throws ServletException, IOException {
     Jenkins.get().checkPermission(Jenkins.READ);
+    showThrottledWarning = !resendLimiter.tryAcquire(user.getId());
+    if (showThrottledWarning) {
+      LOGGER.fine("Too many OTP resends for " + user.getId() + ", not sending");
+      FormApply.success("./").generateResponse(req, rsp, null);
+      return;
+    }
     try {
       sendMail();
     } catch (Exception e) {
@@ -276,10 +277,6 @@ public class MoOtpOverEmailAuth implements Action {
   public void doSaveOrValidateOtpOverEmailConfig(StaplerRequest req, StaplerResponse rsp)
       throws Exception {
     Jenkins.get().checkPermission(Jenkins.READ);
-    if (sentOtp.get(user.getId()) == null) {
-      return;
-    }
-
     boolean isOtpOverEmailConfigured = isOtpOverEmailConfigured();
     net.sf.json.JSONObject json = req.getSubmittedForm();
     String redirectUrl = req.getContextPath() + "./";
@@ -296,10 +293,13 @@ public class MoOtpOverEmailAuth implements Action {
 
       MoOtpOverEmailConfig otpOverEmailConfig = user.getProperty(MoOtpOverEmailConfig.class);
 
-      if (userInputOtp.equals(sentOtp.get(user.getId()))) {
+      showThrottledWarning = !verifyLimiter.tryAcquire(user.getId());
+      if (showThrottledWarning) {
+        LOGGER.fine("Too many OTP verification attempts for " + user.getId());
+        redirectUrl = "./";
+      } else if (otpLedger.consume(user.getId(), userInputOtp)) {
         LOGGER.fine("Otp is authentic");
         otpOverEmailConfig.setConfigured(true);
-        sentOtp.remove(user.getId());
         redirectUrl = allow2FaAccessAndRedirect(session, user, showWrongCredentialWarning);
       } else {
         LOGGER.fine("Entered wrong otp for otpOverEmailConfig");
@@ -31,9 +31,9 @@ import io.jenkins.plugins.twofactor.constants.MoPluginUrls;
 import io.jenkins.plugins.twofactor.jenkins.MoUserAuth;
 import io.jenkins.plugins.twofactor.jenkins.MoUserConfig;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoSecurityQuestionConfig;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpSession;
 import jenkins.model.Jenkins;
@@ -49,7 +49,7 @@ public class MoSecurityQuestionAuth implements Action {
   int secondRandomSecurityQuestionIndex = 1;
   private String[] securityQuestionArray;
   private String[] securityAnswerArray;
-  public Map<String, Boolean> showWrongCredentialWarning = new HashMap<>();
+  public Map<String, Boolean> showWrongCredentialWarning = new ConcurrentHashMap<>();
 
   private static final Random RANDOM = new Random();
 
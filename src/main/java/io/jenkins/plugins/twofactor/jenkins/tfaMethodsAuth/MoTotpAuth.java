@@ -28,23 +28,27 @@ import hudson.model.Action;
 import hudson.model.User;
 import hudson.util.FormApply;
 import io.jenkins.plugins.twofactor.constants.MoPluginUrls;
+import io.jenkins.plugins.twofactor.jenkins.MoTotpQrCache;
 import io.jenkins.plugins.twofactor.jenkins.MoUserAuth;
 import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
 import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
 import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
+import org.kohsuke.stapler.verb.GET;
 
 import javax.servlet.http.HttpSession;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class MoTotpAuth implements Action {
 
     private static final Logger LOGGER = Logger.getLogger(MoTotpAuth.class.getName());
-    public Map<String, Boolean> showWrongCredentialWarning = new HashMap<>();
+    public Map<String, Boolean> showWrongCredentialWarning = new ConcurrentHashMap<>();
 
     private final User user;
 
@@ -78,7 +82,7 @@ public class MoTotpAuth implements Action {
 
     @SuppressWarnings("unused")
     public boolean isUserAuthenticatedFromTfa() {
-        return userAuthenticationStatus.getOrDefault(user.getId(), false);
+        return userAuthenticationStatus.isAuthenticated(user.getId());
     }
 
     @SuppressWarnings("unused")
@@ -92,11 +96,11 @@ public class MoTotpAuth implements Action {
     }
 
     /**
-     * Get QR code data URI for TOTP setup
+     * Get QR code URL for TOTP setup
      * This is used when user hasn't configured TOTP yet
      */
     @SuppressWarnings("unused")
-    public String getQRCodeDataUri() {
+    public String getQRCodeUrl() {
         try {
             MoTotpConfig totpConfig = user.getProperty(MoTotpConfig.class);
             if (totpConfig == null) {
@@ -104,21 +108,28 @@ public class MoTotpAuth implements Action {
             }
             
             // Generate new secret key if not exists
-            if (totpConfig.getSecretKey() == null || totpConfig.getSecretKey().getPlainText().isEmpty()) {
-                String newSecretKey = MoTotpUtil.generateSecretKey();
-                totpConfig.setSecretKey(hudson.util.Secret.fromString(newSecretKey));
-                user.save();
-            }
-            
-            String accountName = user.getId();
-            String issuer = "Jenkins";
-            return MoTotpUtil.generateQRCodeDataUri(totpConfig.getSecretKey().getPlainText(), accountName, issuer);
+            totpConfig.ensureSecretKey();
+            return "qrCode";
         } catch (Exception e) {
-            LOGGER.severe("Error generating QR code for user " + user.getId() + ": " + e.getMessage());
+            LOGGER.severe("Error generating secret key for user " + user.getId() + ": " + e.getMessage());
             return "";
         }
     }
 
+    /**
+     * Serve the QR code image of the user being authenticated
+     */
+    @SuppressWarnings("unused")
+    @GET
+    public HttpResponse doQrCode(StaplerRequest req) {
+        MoTotpConfig totpConfig = user != null ? user.getProperty(MoTotpConfig.class) : null;
+        if (totpConfig == null || totpConfig.isConfigured()) {
+            return HttpResponses.notFound();
+        }
+        return MoTotpQrCache.respond(user.getId(), totpConfig.getSecretKey(),
+                totpConfig.getAlgorithm(), totpConfig.getDigits(), req.getHeader("If-None-Match"));
+    }
+
     /**
      * Get the secret key in plain text for manual entry
      */
@@ -176,8 +187,8 @@ public class MoTotpAuth implements Action {
                 return;
             }
             
-            // Validate TOTP code
-            boolean isValid = MoTotpUtil.validateTotpCode(totpConfig.getSecretKey().getPlainText(), totpCode);
+            // Validate TOTP code, a code that was already used is rejected
+            boolean isValid = totpConfig.verifyCode(totpCode);
             
             if (isValid) {
                 LOGGER.fine("TOTP code is valid for user: " + user.getId());
@@ -21,9 +21,7 @@
  */
 package io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdminConfiguration.ENABLE_2FA_FOR_ALL_USERS;
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_USER_CONFIG;
-import static io.jenkins.plugins.twofactor.jenkins.MoFilter.moPluginSettings;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -37,7 +35,7 @@ import java.io.IOException;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 
-import io.jenkins.plugins.twofactor.jenkins.MoGlobalConfig;
+import io.jenkins.plugins.twofactor.jenkins.MoTfaPolicySnapshot;
 import io.jenkins.plugins.twofactor.jenkins.MoUserAuth;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -116,7 +114,8 @@ public class MoOtpOverEmailConfig extends UserProperty implements Action {
 
     @SuppressWarnings("unused")
     public Boolean showInUserProfile() {
-      return moPluginSettings.getOrDefault(ENABLE_2FA_FOR_ALL_USERS.getKey(), false) && MoGlobalConfig.get().isEnableOtpOverEmailAuthentication();
+      MoTfaPolicySnapshot policy = MoTfaPolicySnapshot.current();
+      return policy.isEnableTfa() && policy.isEnableOtpOverEmailAuthentication();
     }
 
     @SuppressWarnings("unused")
@@ -21,14 +21,12 @@
  */
 package io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdminConfiguration.ENABLE_2FA_FOR_ALL_USERS;
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.UtilityGlobalConstants.SESSION_2FA_VERIFICATION;
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_SECURITY_QUESTION_CONFIG;
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_USER_CONFIG;
 import static io.jenkins.plugins.twofactor.constants.MoSecurityQuestionsConstant.SecurityQuestions;
 import static io.jenkins.plugins.twofactor.constants.MoSecurityQuestionsConstant.SecurityQuestions.SELECT_SECURITY_QUESTION;
 import static io.jenkins.plugins.twofactor.constants.MoSecurityQuestionsConstant.UserSecurityQuestionKey.*;
-import static io.jenkins.plugins.twofactor.jenkins.MoFilter.moPluginSettings;
+import static io.jenkins.plugins.twofactor.jenkins.MoFilter.getSessionVerificationKey;
 import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
 import static jenkins.model.Jenkins.get;
 
@@ -44,7 +42,7 @@ import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
 
-import io.jenkins.plugins.twofactor.jenkins.MoGlobalConfig;
+import io.jenkins.plugins.twofactor.jenkins.MoTfaPolicySnapshot;
 import io.jenkins.plugins.twofactor.jenkins.MoUserAuth;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
@@ -97,7 +95,7 @@ public class MoSecurityQuestionConfig extends UserProperty implements Action {
 
   @SuppressWarnings("unused")
   public boolean isUserAuthenticatedFromTfa() {
-    return userAuthenticationStatus.getOrDefault(user.getId(), false);
+    return userAuthenticationStatus.isAuthenticated(user.getId());
   }
 
   @SuppressWarnings("unused")
@@ -152,8 +150,8 @@ public class MoSecurityQuestionConfig extends UserProperty implements Action {
         if (session != null) {
           redirectUrl = (String) session.getAttribute("tfaRelayState");
           session.removeAttribute("tfaRelayState");
-          session.setAttribute(user.getId() + SESSION_2FA_VERIFICATION.getKey(), "true");
-          userAuthenticationStatus.put(user.getId(), true);
+          session.setAttribute(getSessionVerificationKey(user.getId()), "true");
+          userAuthenticationStatus.update(user.getId(), true);
         }
 
         if (redirectUrl != null) {
@@ -296,8 +294,8 @@ public class MoSecurityQuestionConfig extends UserProperty implements Action {
 
     @SuppressWarnings("unused")
     public Boolean showInUserProfile() {
-      return moPluginSettings.getOrDefault(ENABLE_2FA_FOR_ALL_USERS.getKey(), false)
-          && MoGlobalConfig.get().isEnableSecurityQuestionsAuthentication();
+      MoTfaPolicySnapshot policy = MoTfaPolicySnapshot.current();
+      return policy.isEnableTfa() && policy.isEnableSecurityQuestionsAuthentication();
     }
 
     @SuppressWarnings("unused")
@@ -21,10 +21,8 @@
  */
 package io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig;
 
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdminConfiguration.ENABLE_2FA_FOR_ALL_USERS;
-import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.UtilityGlobalConstants.SESSION_2FA_VERIFICATION;
 import static io.jenkins.plugins.twofactor.constants.MoPluginUrls.Urls.MO_TOTP_CONFIG;
-import static io.jenkins.plugins.twofactor.jenkins.MoFilter.moPluginSettings;
+import static io.jenkins.plugins.twofactor.jenkins.MoFilter.getSessionVerificationKey;
 import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
 import static jenkins.model.Jenkins.get;
 
@@ -33,23 +31,50 @@ import hudson.Extension;
 import hudson.model.*;
 import hudson.util.FormApply;
 import hudson.util.Secret;
-import io.jenkins.plugins.twofactor.jenkins.MoGlobalConfig;
+import io.jenkins.plugins.twofactor.jenkins.MoTfaPolicySnapshot;
+import io.jenkins.plugins.twofactor.jenkins.MoTotpKeyCache;
+import io.jenkins.plugins.twofactor.jenkins.MoTotpQrCache;
+import io.jenkins.plugins.twofactor.jenkins.MoTotpReplayGuard;
 import io.jenkins.plugins.twofactor.jenkins.MoUserAuth;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpEngine;
 import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.kohsuke.stapler.*;
 import org.kohsuke.stapler.interceptor.RequirePOST;
+import org.kohsuke.stapler.verb.GET;
 import org.springframework.lang.NonNull;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 
 public class MoTotpConfig extends UserProperty implements Action {
     private static final Logger LOGGER = Logger.getLogger(MoTotpConfig.class.getName());
+    // Bounds how far the learned drift may move the search, so that the accepted range around the
+    // server clock never exceeds this plus the verification window
+    private static final int MAX_DRIFT_STEPS =
+            SystemProperties.getInteger(MoTotpConfig.class.getName() + ".maxDriftSteps", 2);
+    // How far around the learned drift the first check looks, before the server's window is checked.
+    // One step either side lets the drift follow a clock that keeps running away
+    private static final int DRIFT_WINDOW_STEPS = Math.min(MoTotpUtil.getWindowSteps(),
+            SystemProperties.getInteger(MoTotpConfig.class.getName() + ".driftWindowSteps", 1));
+    private static final int DRIFT_HISTOGRAM_RANGE = MAX_DRIFT_STEPS + MoTotpUtil.getWindowSteps();
+    private static final AtomicLongArray driftHistogram = new AtomicLongArray(2 * DRIFT_HISTOGRAM_RANGE + 1);
+
     private Secret secretKey;
     private boolean isConfigured;
+    // Read and written by concurrent verifications without a lock, a lost update only costs one
+    // extra learning step
+    private volatile int driftSteps;
+    // Fixed at enrollment, absent for users who enrolled when only SHA1 with 6 digits existed
+    private MoTotpEngine.Algorithm algorithm;
+    private int digits;
 
     @DataBoundConstructor
     public MoTotpConfig(Secret secretKey, boolean isConfigured) {
@@ -74,7 +99,7 @@ public class MoTotpConfig extends UserProperty implements Action {
 
     @SuppressWarnings("unused")
     public boolean isUserAuthenticatedFromTfa() {
-        return userAuthenticationStatus.getOrDefault(user.getId(), false);
+        return userAuthenticationStatus.isAuthenticated(user.getId());
     }
 
     @SuppressWarnings("unused")
@@ -103,33 +128,158 @@ public class MoTotpConfig extends UserProperty implements Action {
         return secretKey;
     }
 
+    /**
+     * @return how far the learned drift may move the search away from the server's time step
+     */
+    public static int getMaxDriftSteps() {
+        return MAX_DRIFT_STEPS;
+    }
+
+    /**
+     * @return how many time steps the user's authenticator runs ahead of the server, negative if behind
+     */
+    public int getDriftSteps() {
+        return driftSteps;
+    }
+
+    /**
+     * @return the algorithm the user's authenticator was enrolled with
+     */
+    public MoTotpEngine.Algorithm getAlgorithm() {
+        return algorithm != null ? algorithm : MoTotpEngine.Algorithm.SHA1;
+    }
+
+    /**
+     * @return the number of digits the user's authenticator was enrolled with
+     */
+    public int getDigits() {
+        return digits != 0 ? digits : 6;
+    }
+
     public void setSecretKey(Secret secretKey) {
         this.secretKey = secretKey;
+        // The authenticator app is enrolled with the parameters in effect when it scans the new secret
+        this.algorithm = MoTotpUtil.getDefaultAlgorithm();
+        this.digits = MoTotpUtil.getDefaultDigits();
+        // A new secret usually means a new device with its own clock
+        this.driftSteps = 0;
+        // Steps accepted for the previous secret say nothing about codes from the new one
+        if (user != null) {
+            MoTotpKeyCache.invalidate(user.getId());
+            MoTotpQrCache.invalidate(user.getId());
+            MoTotpReplayGuard.forget(user.getId());
+        }
     }
 
     /**
-     * Generate QR code for TOTP setup
-     * @return QR code as data URI
+     * Check a code from the user's authenticator app. Each code is accepted once, a code from the
+     * same or an earlier time step than the last accepted one is rejected as a replay. For a user
+     * with a learned clock drift, only the step the drift points at is checked first, then the
+     * window around the server's step that was not covered yet, so a stale drift can never lock
+     * the user out. A code matched away from the current step moves the learned drift towards it.
+     * @return true if the code is valid and has not been used before
      */
-    @SuppressWarnings("unused")
-    public String getQRCodeDataUri() {
+    public boolean verifyCode(int code) {
+        byte[] key = MoTotpKeyCache.get(user.getId(), secretKey);
+        if (key == null) {
+            return false;
+        }
+        int drift = driftSteps;
+        long currentStep = MoTotpUtil.currentTimeStep();
+        MoTotpEngine engine = MoTotpUtil.getEngine(getAlgorithm(), getDigits());
+        int window = MoTotpUtil.getWindowSteps();
+        long step;
         try {
-            if (secretKey == null || secretKey.getPlainText().isEmpty()) {
-                // Generate new secret key if not exists
-                String newSecretKey = MoTotpUtil.generateSecretKey();
-                this.secretKey = Secret.fromString(newSecretKey);
+            if (drift == 0) {
+                step = engine.verify(key, code, currentStep, window);
+            } else {
+                long driftStep = currentStep + drift;
+                step = engine.verify(key, code, driftStep, DRIFT_WINDOW_STEPS);
+                if (step == MoTotpEngine.NO_MATCH) {
+                    // The drift may be outdated, for example after the phone's clock was corrected
+                    step = engine.verify(key, code, currentStep, window, driftStep, DRIFT_WINDOW_STEPS);
+                }
+            }
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+        if (step == MoTotpEngine.NO_MATCH || !MoTotpReplayGuard.tryAccept(user.getId(), step)) {
+            return false;
+        }
+
+        int observed = (int) (step - currentStep);
+        recordDrift(observed);
+        int learned = Math.max(-MAX_DRIFT_STEPS, Math.min(MAX_DRIFT_STEPS, observed));
+        if (learned != drift) {
+            driftSteps = learned;
+            LOGGER.fine("TOTP clock drift of " + user.getId() + " is now " + learned + " steps");
+            try {
                 user.save();
+            } catch (IOException e) {
+                LOGGER.fine("Error in saving TOTP clock drift of " + user.getId() + ", error is " + e.getMessage());
             }
-            
-            String accountName = user.getId();
-            String issuer = "Jenkins";
-            return MoTotpUtil.generateQRCodeDataUri(secretKey.getPlainText(), accountName, issuer);
+        }
+        return true;
+    }
+
+    private static void recordDrift(int observed) {
+        int bucket = Math.max(-DRIFT_HISTOGRAM_RANGE, Math.min(DRIFT_HISTOGRAM_RANGE, observed));
+        driftHistogram.incrementAndGet(bucket + DRIFT_HISTOGRAM_RANGE);
+    }
+
+    /**
+     * @return how many accepted codes were found at each offset from the server's time step,
+     * in ascending order of offset
+     */
+    public static Map<Integer, Long> getDriftHistogram() {
+        Map<Integer, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < driftHistogram.length(); i++) {
+            histogram.put(i - DRIFT_HISTOGRAM_RANGE, driftHistogram.get(i));
+        }
+        return histogram;
+    }
+
+    /**
+     * Generate a secret key for the user if they do not have one yet
+     * @return true if a secret key was generated
+     */
+    public synchronized boolean ensureSecretKey() throws IOException {
+        if (secretKey != null && !secretKey.getPlainText().isEmpty()) {
+            return false;
+        }
+        setSecretKey(Secret.fromString(MoTotpUtil.generateSecretKey()));
+        user.save();
+        return true;
+    }
+
+    /**
+     * Get the QR code for TOTP setup, generating the secret key first if needed
+     * @return URL of the QR code image, relative to this page
+     */
+    @SuppressWarnings("unused")
+    public String getQRCodeUrl() {
+        try {
+            ensureSecretKey();
+            return "qrCode";
         } catch (Exception e) {
-            LOGGER.severe("Error generating QR code: " + e.getMessage());
+            LOGGER.severe("Error generating secret key: " + e.getMessage());
             return "";
         }
     }
 
+    /**
+     * Serve the QR code image, only to the user it belongs to
+     */
+    @SuppressWarnings("unused")
+    @GET
+    public HttpResponse doQrCode(StaplerRequest req) {
+        User current = User.current();
+        if (user == null || current == null || !current.getId().equals(user.getId())) {
+            return HttpResponses.forbidden();
+        }
+        return MoTotpQrCache.respond(user.getId(), secretKey, getAlgorithm(), getDigits(), req.getHeader("If-None-Match"));
+    }
+
     /**
      * Get the secret key in plain text for display
      * @return Secret key string
@@ -167,7 +317,7 @@ public class MoTotpConfig extends UserProperty implements Action {
                 MoTotpConfig totpConfig = user.getProperty(MoTotpConfig.class);
                 
                 // Validate the TOTP code
-                if (MoTotpUtil.validateTotpCode(totpConfig.getSecretKey().getPlainText(), code)) {
+                if (totpConfig.verifyCode(code)) {
                     totpConfig.setConfigured(true);
                     user.save();
                     
@@ -176,8 +326,8 @@ public class MoTotpConfig extends UserProperty implements Action {
                     if (session != null) {
                         redirectUrl = (String) session.getAttribute("tfaRelayState");
                         session.removeAttribute("tfaRelayState");
-                        session.setAttribute(user.getId() + SESSION_2FA_VERIFICATION.getKey(), "true");
-                        userAuthenticationStatus.put(user.getId(), true);
+                        session.setAttribute(getSessionVerificationKey(user.getId()), "true");
+                        userAuthenticationStatus.update(user.getId(), true);
                     }
                     
                     LOGGER.fine("TOTP configuration saved successfully for user: " + user.getId());
@@ -249,8 +399,8 @@ public class MoTotpConfig extends UserProperty implements Action {
 
         @SuppressWarnings("unused")
         public Boolean showInUserProfile() {
-            return moPluginSettings.getOrDefault(ENABLE_2FA_FOR_ALL_USERS.getKey(), false)
-                    && MoGlobalConfig.get().isEnableTotpAuthentication();
+            MoTfaPolicySnapshot policy = MoTfaPolicySnapshot.current();
+            return policy.isEnableTfa() && policy.isEnableTotpAuthentication();
         }
 
         @SuppressWarnings("unused")
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Holds one in-flight 2FA challenge per HTTP session. Each challenge remembers the user it was
+ * created for and expires after a fixed time to live, after which the next lookup creates a
+ * fresh one. Updates are per key, so concurrent logins do not contend on a shared lock.
+ *
+ * @param <T> the challenge type
+ */
+public final class MoChallengeStore<T> {
+
+    private final Map<String, Entry<T>> entries = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    public MoChallengeStore(long ttl, TimeUnit unit) {
+        this.ttlMillis = unit.toMillis(ttl);
+    }
+
+    /**
+     * Get the challenge of a session, creating it if the session has none, the existing one has
+     * expired or it was created for a different user.
+     * @param sessionId the HTTP session id
+     * @param userId the id of the user answering the challenge
+     * @param factory creates a new challenge
+     * @return the challenge of the session
+     */
+    public T getOrCreate(String sessionId, String userId, Supplier<T> factory) {
+        long now = System.currentTimeMillis();
+        Entry<T> entry = entries.get(sessionId);
+        if (entry != null && entry.isValidFor(userId, now)) {
+            return entry.value;
+        }
+        return entries.compute(
+                sessionId,
+                (key, existing) -> existing != null && existing.isValidFor(userId, now)
+                        ? existing
+                        : new Entry<>(userId, factory.get(), now + ttlMillis))
+                .value;
+    }
+
+    /**
+     * Drop the challenge of a session.
+     * @return true if the session had a challenge
+     */
+    public boolean remove(String sessionId) {
+        return entries.remove(sessionId) != null;
+    }
+
+    /**
+     * Drop challenges whose time to live has passed.
+     * @return the number of challenges dropped
+     */
+    public int evictExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+            if (entry.getValue().expiresAt <= now && entries.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static final class Entry<T> {
+        private final String userId;
+        private final T value;
+        private final long expiresAt;
+
+        private Entry(String userId, T value, long expiresAt) {
+            this.userId = userId;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isValidFor(String userId, long now) {
+            return expiresAt > now && this.userId.equals(userId);
+        }
+    }
+}
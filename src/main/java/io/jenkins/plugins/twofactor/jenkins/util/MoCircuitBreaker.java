@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker around a remote dependency. After {@code failureThreshold} consecutive failures
+ * the breaker opens and calls fail fast. Once the open duration has passed, a single trial call
+ * is let through: its success closes the breaker, its failure opens it again.
+ */
+public final class MoCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationMillis;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    // 0 while closed, otherwise the time at which the breaker last opened
+    private final AtomicLong openedAt = new AtomicLong();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+
+    public MoCircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationMillis = unit.toMillis(openDuration);
+    }
+
+    /**
+     * @return true if the call may go ahead, in which case its outcome must be reported with
+     *     {@link #recordSuccess()} or {@link #recordFailure()}
+     */
+    public boolean tryAcquire() {
+        long opened = openedAt.get();
+        if (opened == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() - opened < openDurationMillis) {
+            return false;
+        }
+        return trialInFlight.compareAndSet(false, true);
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        openedAt.set(0);
+        trialInFlight.set(false);
+    }
+
+    public void recordFailure() {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold || openedAt.get() != 0) {
+            openedAt.set(System.currentTimeMillis());
+        }
+        trialInFlight.set(false);
+    }
+
+    public State getState() {
+        long opened = openedAt.get();
+        if (opened == 0) {
+            return State.CLOSED;
+        }
+        return System.currentTimeMillis() - opened < openDurationMillis ? State.OPEN : State.HALF_OPEN;
+    }
+
+    /**
+     * @return true while calls are being rejected
+     */
+    public boolean isOpen() {
+        return getState() == State.OPEN;
+    }
+
+    /**
+     * @return the time at which the breaker last opened, 0 if it is closed
+     */
+    public long getOpenedAt() {
+        return openedAt.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+}
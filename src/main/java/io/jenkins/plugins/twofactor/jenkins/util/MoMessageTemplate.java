@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message template with {@code $name} style placeholders, split once into literal and
+ * placeholder segments so that rendering is a single append pass into a pre-sized buffer.
+ */
+public final class MoMessageTemplate {
+
+    // Rough allowance per substituted value when sizing the render buffer
+    private static final int VALUE_SIZE_HINT = 32;
+
+    private final String[] literals;
+    private final int[] placeholderIndexes;
+    private final int literalLength;
+
+    private MoMessageTemplate(String[] literals, int[] placeholderIndexes, int literalLength) {
+        this.literals = literals;
+        this.placeholderIndexes = placeholderIndexes;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * Split a template into segments.
+     * @param template the template text, null is treated as empty
+     * @param placeholders the placeholders to recognise, e.g. {@code $username}; when two of them
+     *     start at the same position the first one listed wins
+     */
+    public static MoMessageTemplate compile(String template, String... placeholders) {
+        String text = template == null ? "" : template;
+        List<String> literals = new ArrayList<>();
+        List<Integer> placeholderIndexes = new ArrayList<>();
+        int literalStart = 0;
+        int literalLength = 0;
+        int position = text.indexOf('$');
+        while (position >= 0) {
+            int match = matchPlaceholder(text, position, placeholders);
+            if (match < 0) {
+                position = text.indexOf('$', position + 1);
+                continue;
+            }
+            literals.add(text.substring(literalStart, position));
+            literalLength += position - literalStart;
+            placeholderIndexes.add(match);
+            literalStart = position + placeholders[match].length();
+            position = text.indexOf('$', literalStart);
+        }
+        literals.add(text.substring(literalStart));
+        literalLength += text.length() - literalStart;
+
+        int[] indexes = new int[placeholderIndexes.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = placeholderIndexes.get(i);
+        }
+        return new MoMessageTemplate(literals.toArray(new String[0]), indexes, literalLength);
+    }
+
+    private static int matchPlaceholder(String text, int position, String[] placeholders) {
+        for (int i = 0; i < placeholders.length; i++) {
+            if (text.startsWith(placeholders[i], position)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Render the template as plain text.
+     * @param values the value of each placeholder, in the order they were given to compile
+     */
+    public String render(String... values) {
+        return render(false, values);
+    }
+
+    /**
+     * Render the template, HTML escaping the substituted values so that they cannot inject markup
+     * into an HTML template. The literal parts are trusted and copied as is.
+     */
+    public String renderHtml(String... values) {
+        return render(true, values);
+    }
+
+    private String render(boolean escapeHtml, String... values) {
+        StringBuilder out =
+                new StringBuilder(literalLength + placeholderIndexes.length * VALUE_SIZE_HINT);
+        for (int i = 0; i < placeholderIndexes.length; i++) {
+            out.append(literals[i]);
+            String value = values[placeholderIndexes[i]];
+            if (escapeHtml) {
+                appendEscaped(out, value);
+            } else {
+                out.append(value);
+            }
+        }
+        out.append(literals[literals.length - 1]);
+        return out.toString();
+    }
+
+    private static void appendEscaped(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\'':
+                    out.append("&#39;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
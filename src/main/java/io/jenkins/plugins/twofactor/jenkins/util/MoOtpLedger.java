@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outstanding one-time passwords, keyed by user. Only a salted SHA-256 hash of each code is kept.
+ * Codes expire after a fixed time to live, each one can be used once, and a user holds at most a
+ * bounded number of outstanding codes, the oldest being dropped when a new one is issued.
+ */
+public final class MoOtpLedger {
+
+    private static final int SALT_LENGTH = 16;
+    private static final SecureRandom SALT_RANDOM = new SecureRandom();
+
+    private final Map<String, List<Entry>> entries = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final int maxOutstandingPerUser;
+
+    public MoOtpLedger(long ttl, TimeUnit unit, int maxOutstandingPerUser) {
+        this.ttlMillis = unit.toMillis(ttl);
+        this.maxOutstandingPerUser = Math.max(1, maxOutstandingPerUser);
+    }
+
+    /**
+     * Record a code sent to a user.
+     */
+    public void record(String userId, String otp) {
+        long now = System.currentTimeMillis();
+        byte[] salt = new byte[SALT_LENGTH];
+        SALT_RANDOM.nextBytes(salt);
+        Entry entry = new Entry(salt, hash(salt, otp), now + ttlMillis);
+        entries.compute(userId, (key, existing) -> {
+            List<Entry> outstanding = new ArrayList<>(maxOutstandingPerUser);
+            if (existing != null) {
+                for (Entry previous : existing) {
+                    if (previous.expiresAt > now) {
+                        outstanding.add(previous);
+                    }
+                }
+            }
+            while (outstanding.size() >= maxOutstandingPerUser) {
+                outstanding.remove(0);
+            }
+            outstanding.add(entry);
+            return Collections.unmodifiableList(outstanding);
+        });
+    }
+
+    /**
+     * @return true if the user has a code that has not expired or been used
+     */
+    public boolean hasOutstanding(String userId) {
+        List<Entry> outstanding = entries.get(userId);
+        if (outstanding == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (Entry entry : outstanding) {
+            if (entry.expiresAt > now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check a code entered by a user. A matching code is used up together with every other code
+     * outstanding for the user, so that a code cannot be replayed.
+     * @return true if the code matches one that has not expired
+     */
+    public boolean consume(String userId, String otp) {
+        if (otp == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        boolean[] matched = new boolean[1];
+        entries.computeIfPresent(userId, (key, outstanding) -> {
+            for (Entry entry : outstanding) {
+                // Every entry is hashed so that the time taken does not reveal which one matched
+                if (MessageDigest.isEqual(entry.hash, hash(entry.salt, otp)) && entry.expiresAt > now) {
+                    matched[0] = true;
+                }
+            }
+            return matched[0] ? null : outstanding;
+        });
+        return matched[0];
+    }
+
+    /**
+     * Drop every code outstanding for a user.
+     * @return true if the user had any
+     */
+    public boolean clear(String userId) {
+        return entries.remove(userId) != null;
+    }
+
+    /**
+     * Drop codes whose time to live has passed.
+     * @return the number of users whose codes all expired
+     */
+    public int evictExpired() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Map.Entry<String, List<Entry>> userEntries : entries.entrySet()) {
+            boolean expired = true;
+            for (Entry entry : userEntries.getValue()) {
+                if (entry.expiresAt > now) {
+                    expired = false;
+                    break;
+                }
+            }
+            if (expired && entries.remove(userEntries.getKey(), userEntries.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static byte[] hash(byte[] salt, String otp) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(otp.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] salt;
+        private final byte[] hash;
+        private final long expiresAt;
+
+        private Entry(byte[] salt, byte[] hash, long expiresAt) {
+            this.salt = salt;
+            this.hash = hash;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
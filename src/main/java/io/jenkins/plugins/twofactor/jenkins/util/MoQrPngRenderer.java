@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import com.google.zxing.common.BitMatrix;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes a QR code {@link BitMatrix} as a black and white PNG without going through AWT or
+ * ImageIO, so the plugin does not need zxing's javase module. Pixels are written one bit each,
+ * set bits of the matrix are black.
+ */
+public final class MoQrPngRenderer {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int BIT_DEPTH = 1;
+    private static final int COLOR_TYPE_GRAYSCALE = 0;
+
+    private MoQrPngRenderer() {}
+
+    /**
+     * @param matrix the QR code, one element per pixel
+     * @return the PNG encoded image
+     */
+    public static byte[] render(BitMatrix matrix) {
+        int width = matrix.getWidth();
+        int height = matrix.getHeight();
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.writeByte(BIT_DEPTH);
+            headerData.writeByte(COLOR_TYPE_GRAYSCALE);
+            // Deflate compression, adaptive filtering, no interlace
+            headerData.writeByte(0);
+            headerData.writeByte(0);
+            headerData.writeByte(0);
+
+            int rowBytes = (width + 7) / 8;
+            ByteArrayOutputStream pixels = new ByteArrayOutputStream(1024);
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(pixels)) {
+                byte[] row = new byte[rowBytes + 1];
+                for (int y = 0; y < height; y++) {
+                    // Filter type none, then white pixels as set bits
+                    row[0] = 0;
+                    for (int i = 1; i <= rowBytes; i++) {
+                        row[i] = (byte) 0xff;
+                    }
+                    for (int x = 0; x < width; x++) {
+                        if (matrix.get(x, y)) {
+                            row[1 + x / 8] &= (byte) ~(0x80 >>> (x % 8));
+                        }
+                    }
+                    deflater.write(row);
+                }
+            }
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream(pixels.size() + 64);
+            DataOutputStream out = new DataOutputStream(png);
+            out.write(SIGNATURE);
+            writeChunk(out, "IHDR", header.toByteArray());
+            writeChunk(out, "IDAT", pixels.toByteArray());
+            writeChunk(out, "IEND", new byte[0]);
+            return png.toByteArray();
+        } catch (IOException e) {
+            // Only in-memory streams are written
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-key token bucket. Each key starts with a full bucket of {@code capacity} tokens, every
+ * permitted call takes one and a token is added back every refill interval.
+ */
+public final class MoRateLimiter {
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final long refillIntervalNanos;
+    private final LongAdder rejected = new LongAdder();
+
+    public MoRateLimiter(int capacity, long refillInterval, TimeUnit unit) {
+        this.capacity = Math.max(1, capacity);
+        this.refillIntervalNanos = Math.max(1, unit.toNanos(refillInterval));
+    }
+
+    /**
+     * Take a token for a key.
+     * @return false if the key has used up its tokens, in which case the call should be rejected
+     */
+    public boolean tryAcquire(String key) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket(capacity, now));
+        synchronized (bucket) {
+            bucket.refill(now, capacity, refillIntervalNanos);
+            if (bucket.tokens > 0) {
+                bucket.tokens--;
+                return true;
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Drop buckets that have refilled completely, they behave the same as a new bucket.
+     * @return the number of buckets dropped
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int removed = 0;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            if (removeIfFull(entry.getKey(), entry.getValue(), now)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Drop the bucket of a key if it has refilled completely. A bucket that is still being
+     * drained is kept, so that releasing state early does not reset the limit.
+     * @return true if the bucket was dropped
+     */
+    public boolean evictIfIdle(String key) {
+        Bucket bucket = buckets.get(key);
+        return bucket != null && removeIfFull(key, bucket, System.nanoTime());
+    }
+
+    private boolean removeIfFull(String key, Bucket bucket, long now) {
+        boolean full;
+        synchronized (bucket) {
+            bucket.refill(now, capacity, refillIntervalNanos);
+            full = bucket.tokens >= capacity;
+        }
+        return full && buckets.remove(key, bucket);
+    }
+
+    /**
+     * @return the number of calls rejected since startup
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private static final class Bucket {
+        private int tokens;
+        private long lastRefill;
+
+        private Bucket(int tokens, long lastRefill) {
+            this.tokens = tokens;
+            this.lastRefill = lastRefill;
+        }
+
+        private void refill(long now, int capacity, long refillIntervalNanos) {
+            long intervals = (now - lastRefill) / refillIntervalNanos;
+            if (intervals <= 0) {
+                return;
+            }
+            if (tokens + intervals >= capacity) {
+                tokens = capacity;
+                lastRefill = now;
+            } else {
+                tokens += (int) intervals;
+                lastRefill += intervals * refillIntervalNanos;
+            }
+        }
+    }
+}
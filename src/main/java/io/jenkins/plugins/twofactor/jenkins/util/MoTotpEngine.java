@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * RFC 6238 time-based one-time password verifier. Keys are base32 decoded once by the caller,
+ * each thread keeps its own {@link Mac} per algorithm, and checking the drift window reuses per
+ * thread buffers, so a verification allocates only the key spec for the user's key.
+ */
+public final class MoTotpEngine {
+
+    /** Returned by {@link #verify} when the code does not match any step in the window. */
+    public static final long NO_MATCH = -1;
+
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000, 100_000_000};
+
+    public enum Algorithm {
+        SHA1("HmacSHA1", 20),
+        SHA256("HmacSHA256", 32),
+        SHA512("HmacSHA512", 64);
+
+        private final String macName;
+        private final int macLength;
+
+        Algorithm(String macName, int macLength) {
+            this.macName = macName;
+            this.macLength = macLength;
+        }
+
+        public String getMacName() {
+            return macName;
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final int digits;
+    private final long periodMillis;
+    private final int windowSteps;
+    private final ThreadLocal<ThreadState> threadState;
+
+    /**
+     * @param algorithm the HMAC algorithm
+     * @param digits the number of digits of a code, 6 or 8
+     * @param period the length of a time step
+     * @param windowSteps how many steps before and after the current one are accepted
+     */
+    public MoTotpEngine(Algorithm algorithm, int digits, long period, TimeUnit unit, int windowSteps) {
+        if (digits != 6 && digits != 8) {
+            throw new IllegalArgumentException("TOTP codes have 6 or 8 digits, not " + digits);
+        }
+        this.algorithm = algorithm;
+        this.digits = digits;
+        this.periodMillis = unit.toMillis(period);
+        this.windowSteps = Math.max(0, windowSteps);
+        this.threadState = ThreadLocal.withInitial(() -> new ThreadState(algorithm));
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getDigits() {
+        return digits;
+    }
+
+    public long getPeriodSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(periodMillis);
+    }
+
+    public int getWindowSteps() {
+        return windowSteps;
+    }
+
+    /**
+     * @return the time step containing the given time
+     */
+    public long timeStep(long timeMillis) {
+        return timeMillis / periodMillis;
+    }
+
+    /**
+     * Check a code against every step of the window around the given time, nearest steps first.
+     * @param key the decoded shared secret
+     * @return the matching time step, or {@link #NO_MATCH}
+     */
+    public long verify(byte[] key, int code, long timeMillis) {
+        return verify(key, code, timeStep(timeMillis), windowSteps);
+    }
+
+    /**
+     * Check a code against the steps within {@code window} of a centre step, nearest steps first.
+     * @return the matching time step, or {@link #NO_MATCH}
+     */
+    public long verify(byte[] key, int code, long centreStep, int window) {
+        return verify(key, code, centreStep, window, centreStep, -1);
+    }
+
+    /**
+     * Check a code against the steps within {@code window} of a centre step, nearest steps first,
+     * skipping the steps within {@code skipWindow} of {@code skipCentre} that were already checked.
+     * @return the matching time step, or {@link #NO_MATCH}
+     */
+    public long verify(byte[] key, int code, long centreStep, int window, long skipCentre, int skipWindow) {
+        if (code < 0 || code >= POWERS_OF_TEN[digits]) {
+            return NO_MATCH;
+        }
+        ThreadState state = threadState.get();
+        Mac mac = state.init(key);
+        if (mac == null) {
+            return NO_MATCH;
+        }
+        for (int offset = 0; offset <= window; offset++) {
+            long before = centreStep - offset;
+            if (Math.abs(before - skipCentre) > skipWindow && state.compute(before, digits) == code) {
+                return before;
+            }
+            long after = centreStep + offset;
+            if (offset > 0 && Math.abs(after - skipCentre) > skipWindow && state.compute(after, digits) == code) {
+                return after;
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * @return the code for a time step, or -1 if the key cannot be used
+     */
+    public int generate(byte[] key, long step) {
+        ThreadState state = threadState.get();
+        return state.init(key) == null ? -1 : state.compute(step, digits);
+    }
+
+    /**
+     * Decode a base32 (RFC 4648) secret. Case, spaces, dashes and padding are ignored.
+     * @return the decoded key, never null
+     * @throws IllegalArgumentException if the secret contains other characters
+     */
+    public static byte[] decodeBase32(String secret) {
+        String text = secret.toUpperCase(Locale.ROOT);
+        byte[] out = new byte[text.length() * 5 / 8];
+        int buffer = 0;
+        int bits = 0;
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int value;
+            if (c >= 'A' && c <= 'Z') {
+                value = c - 'A';
+            } else if (c >= '2' && c <= '7') {
+                value = c - '2' + 26;
+            } else if (c == '=' || c == ' ' || c == '-') {
+                continue;
+            } else {
+                throw new IllegalArgumentException("Invalid base32 character in secret");
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                out[length++] = (byte) (buffer >> bits);
+            }
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+
+    /** Per thread MAC and scratch buffers, so verification does not allocate per step. */
+    private static final class ThreadState {
+        private final Algorithm algorithm;
+        private final Mac mac;
+        private final byte[] counter = new byte[8];
+        private final byte[] hash;
+
+        private ThreadState(Algorithm algorithm) {
+            this.algorithm = algorithm;
+            try {
+                this.mac = Mac.getInstance(algorithm.macName);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(algorithm.macName + " is not available", e);
+            }
+            this.hash = new byte[algorithm.macLength];
+        }
+
+        private Mac init(byte[] key) {
+            if (key.length == 0) {
+                return null;
+            }
+            try {
+                mac.init(new SecretKeySpec(key, algorithm.macName));
+                return mac;
+            } catch (InvalidKeyException e) {
+                return null;
+            }
+        }
+
+        private int compute(long step, int digits) {
+            long value = step;
+            for (int i = 7; i >= 0; i--) {
+                counter[i] = (byte) value;
+                value >>>= 8;
+            }
+            mac.update(counter);
+            try {
+                mac.doFinal(hash, 0);
+            } catch (ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+            // Dynamic truncation, RFC 4226 section 5.3
+            int offset = hash[hash.length - 1] & 0x0f;
+            int binary = ((hash[offset] & 0x7f) << 24)
+                    | ((hash[offset + 1] & 0xff) << 16)
+                    | ((hash[offset + 2] & 0xff) << 8)
+                    | (hash[offset + 3] & 0xff);
+            return binary % POWERS_OF_TEN[digits];
+        }
+    }
+}
@@ -23,27 +23,90 @@ package io.jenkins.plugins.twofactor.jenkins.util;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.WriterException;
-import com.google.zxing.client.j2se.MatrixToImageWriter;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 import com.warrenstrange.googleauth.GoogleAuthenticator;
 import com.warrenstrange.googleauth.GoogleAuthenticatorKey;
 import com.warrenstrange.googleauth.GoogleAuthenticatorQRGenerator;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
 
 /**
  * Utility class for TOTP (Time-based One-Time Password) operations
- * Uses Google Authenticator library for TOTP generation and validation
+ * Uses Google Authenticator library for secret key generation
+ * Uses {@link MoTotpEngine} for TOTP validation
  * Uses ZXing library for QR code generation
  */
 public class MoTotpUtil {
     private static final Logger LOGGER = Logger.getLogger(MoTotpUtil.class.getName());
     private static final GoogleAuthenticator gAuth = new GoogleAuthenticator();
     private static final int QR_CODE_SIZE = 300;
+    private static final int PERIOD_SECONDS = 30;
+    private static final int MAX_WINDOW_STEPS = 10;
+    // Only new enrollments use these, each user keeps the algorithm and digits they enrolled with
+    // because their authenticator app keeps generating codes with them
+    private static final MoTotpEngine.Algorithm DEFAULT_ALGORITHM = readAlgorithm();
+    private static final int DEFAULT_DIGITS = readDigits();
+    private static final int WINDOW_STEPS = readWindowSteps();
+    private static final Map<String, MoTotpEngine> ENGINES = new ConcurrentHashMap<>();
+    private static final MoTotpEngine ENGINE = getEngine(DEFAULT_ALGORITHM, DEFAULT_DIGITS);
+
+    private static MoTotpEngine.Algorithm readAlgorithm() {
+        String value = SystemProperties.getString(MoTotpUtil.class.getName() + ".algorithm", "SHA1");
+        try {
+            return MoTotpEngine.Algorithm.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Unsupported TOTP algorithm " + value + ", falling back to SHA1");
+            return MoTotpEngine.Algorithm.SHA1;
+        }
+    }
+
+    private static int readDigits() {
+        int value = SystemProperties.getInteger(MoTotpUtil.class.getName() + ".digits", 6);
+        if (value != 6 && value != 8) {
+            LOGGER.warning("TOTP codes have 6 or 8 digits, not " + value + ", falling back to 6");
+            return 6;
+        }
+        return value;
+    }
+
+    private static int readWindowSteps() {
+        int value = SystemProperties.getInteger(MoTotpUtil.class.getName() + ".windowSteps", 1);
+        if (value < 0 || value > MAX_WINDOW_STEPS) {
+            LOGGER.warning("TOTP window of " + value + " steps is outside 0.." + MAX_WINDOW_STEPS + ", falling back to 1");
+            return 1;
+        }
+        return value;
+    }
+
+    /**
+     * @return the verifier for codes with the given algorithm and number of digits
+     */
+    public static MoTotpEngine getEngine(MoTotpEngine.Algorithm algorithm, int digits) {
+        return ENGINES.computeIfAbsent(algorithm.name() + "/" + digits,
+                k -> new MoTotpEngine(algorithm, digits, PERIOD_SECONDS, TimeUnit.SECONDS, WINDOW_STEPS));
+    }
+
+    /**
+     * @return the algorithm new enrollments use
+     */
+    public static MoTotpEngine.Algorithm getDefaultAlgorithm() {
+        return DEFAULT_ALGORITHM;
+    }
+
+    /**
+     * @return the number of digits new enrollments use
+     */
+    public static int getDefaultDigits() {
+        return DEFAULT_DIGITS;
+    }
 
     /**
      * Generate a new secret key for TOTP
@@ -66,14 +129,73 @@ public class MoTotpUtil {
      * @return true if the code is valid, false otherwise
      */
     public static boolean validateTotpCode(String secretKey, int code) {
+        return matchTotpCode(secretKey, code) != MoTotpEngine.NO_MATCH;
+    }
+
+    /**
+     * Find the time step a TOTP code belongs to
+     * @param secretKey The secret key
+     * @param code The TOTP code to validate
+     * @return the matching time step, or {@link MoTotpEngine#NO_MATCH} if the code is invalid
+     */
+    public static long matchTotpCode(String secretKey, int code) {
         try {
-            return gAuth.authorize(secretKey, code);
+            return matchTotpCode(MoTotpEngine.decodeBase32(secretKey), code);
         } catch (Exception e) {
             LOGGER.warning("Error validating TOTP code: " + e.getMessage());
-            return false;
+            return MoTotpEngine.NO_MATCH;
         }
     }
 
+    /**
+     * Find the time step a TOTP code belongs to
+     * @param key The decoded secret key
+     * @param code The TOTP code to validate
+     * @return the matching time step, or {@link MoTotpEngine#NO_MATCH} if the code is invalid
+     */
+    public static long matchTotpCode(byte[] key, int code) {
+        return ENGINE.verify(key, code, System.currentTimeMillis());
+    }
+
+    /**
+     * Find the time step a TOTP code belongs to, searching outwards from the given step
+     * @param key The decoded secret key
+     * @param code The TOTP code to validate
+     * @param centreStep the step tried first, the current step shifted by the user's clock drift
+     * @return the matching time step, or {@link MoTotpEngine#NO_MATCH} if the code is invalid
+     */
+    public static long matchTotpCode(byte[] key, int code, long centreStep) {
+        return ENGINE.verify(key, code, centreStep, WINDOW_STEPS);
+    }
+
+    /**
+     * Find the time step a code from an authenticator enrolled with the given parameters belongs
+     * to, searching outwards from the given step
+     * @param algorithm the algorithm the user enrolled with
+     * @param digits the number of digits the user enrolled with
+     * @param key The decoded secret key
+     * @param code The TOTP code to validate
+     * @param centreStep the step tried first
+     * @return the matching time step, or {@link MoTotpEngine#NO_MATCH} if the code is invalid
+     */
+    public static long matchTotpCode(MoTotpEngine.Algorithm algorithm, int digits, byte[] key, int code, long centreStep) {
+        return getEngine(algorithm, digits).verify(key, code, centreStep, WINDOW_STEPS);
+    }
+
+    /**
+     * @return the current TOTP time step
+     */
+    public static long currentTimeStep() {
+        return ENGINE.timeStep(System.currentTimeMillis());
+    }
+
+    /**
+     * @return how many time steps before and after the current one are accepted
+     */
+    public static int getWindowSteps() {
+        return WINDOW_STEPS;
+    }
+
     /**
      * Generate QR code URL for Google Authenticator
      * @param secretKey The secret key
@@ -82,38 +204,92 @@ public class MoTotpUtil {
      * @return QR code URL
      */
     public static String generateQRCodeUrl(String secretKey, String accountName, String issuer) {
+        return generateQRCodeUrl(secretKey, accountName, issuer, DEFAULT_ALGORITHM, DEFAULT_DIGITS);
+    }
+
+    /**
+     * Generate QR code URL for an authenticator using the given parameters
+     * @param algorithm the algorithm the user enrolled with
+     * @param digits the number of digits the user enrolled with
+     * @return QR code URL
+     */
+    public static String generateQRCodeUrl(String secretKey, String accountName, String issuer,
+                                           MoTotpEngine.Algorithm algorithm, int digits) {
     // tự build URL otpauth://
     String otpAuthUrl = String.format(
-        "otpauth://totp/%s:%s?secret=%s&issuer=%s&algorithm=SHA1&digits=6&period=30",
-        issuer, accountName, secretKey, issuer
+        "otpauth://totp/%s:%s?secret=%s&issuer=%s&algorithm=%s&digits=%d&period=%d",
+        issuer, accountName, secretKey, issuer, algorithm.name(), digits, PERIOD_SECONDS
     );
     return otpAuthUrl;
 }
 
     /**
-     * Generate QR code image as Base64 encoded string
+     * Generate QR code image as PNG
      * @param secretKey The secret key
      * @param accountName The account name (usually username)
      * @param issuer The issuer name (usually "Jenkins")
-     * @return Base64 encoded QR code image
+     * @return PNG encoded QR code image
      */
-    public static String generateQRCodeImageBase64(String secretKey, String accountName, String issuer) {
+    public static byte[] generateQRCodeImage(String secretKey, String accountName, String issuer) {
+        return generateQRCodeImage(secretKey, accountName, issuer, DEFAULT_ALGORITHM, DEFAULT_DIGITS);
+    }
+
+    /**
+     * Generate QR code image as PNG for an authenticator using the given parameters
+     * @return PNG encoded QR code image
+     */
+    public static byte[] generateQRCodeImage(String secretKey, String accountName, String issuer,
+                                             MoTotpEngine.Algorithm algorithm, int digits) {
         try {
-            String qrCodeUrl = generateQRCodeUrl(secretKey, accountName, issuer);
+            String qrCodeUrl = generateQRCodeUrl(secretKey, accountName, issuer, algorithm, digits);
             QRCodeWriter qrCodeWriter = new QRCodeWriter();
             BitMatrix bitMatrix = qrCodeWriter.encode(qrCodeUrl, BarcodeFormat.QR_CODE, QR_CODE_SIZE, QR_CODE_SIZE);
-            
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            MatrixToImageWriter.writeToStream(bitMatrix, "PNG", outputStream);
-            byte[] qrCodeBytes = outputStream.toByteArray();
-            
-            return Base64.getEncoder().encodeToString(qrCodeBytes);
-        } catch (WriterException | IOException e) {
+            return MoQrPngRenderer.render(bitMatrix);
+        } catch (WriterException e) {
+            LOGGER.severe("Error generating QR code: " + e.getMessage());
+            throw new RuntimeException("Failed to generate QR code", e);
+        }
+    }
+
+    /**
+     * Generate QR code image as SVG, without going through AWT
+     * @param secretKey The secret key
+     * @param accountName The account name (usually username)
+     * @param issuer The issuer name (usually "Jenkins")
+     * @return UTF-8 encoded SVG document
+     */
+    public static byte[] generateQRCodeSvg(String secretKey, String accountName, String issuer) {
+        return generateQRCodeSvg(secretKey, accountName, issuer, DEFAULT_ALGORITHM, DEFAULT_DIGITS);
+    }
+
+    /**
+     * Generate QR code image as SVG for an authenticator using the given parameters
+     * @return UTF-8 encoded SVG document
+     */
+    public static byte[] generateQRCodeSvg(String secretKey, String accountName, String issuer,
+                                           MoTotpEngine.Algorithm algorithm, int digits) {
+        try {
+            String qrCodeUrl = generateQRCodeUrl(secretKey, accountName, issuer, algorithm, digits);
+            // A zero size gives one element per module, the SVG scales it up
+            BitMatrix bitMatrix = new QRCodeWriter().encode(qrCodeUrl, BarcodeFormat.QR_CODE, 0, 0);
+            return MoQrSvgRenderer.render(bitMatrix, QR_CODE_SIZE).getBytes(StandardCharsets.UTF_8);
+        } catch (WriterException e) {
             LOGGER.severe("Error generating QR code: " + e.getMessage());
             throw new RuntimeException("Failed to generate QR code", e);
         }
     }
 
+    /**
+     * Generate QR code image as Base64 encoded string
+     * @param secretKey The secret key
+     * @param accountName The account name (usually username)
+     * @param issuer The issuer name (usually "Jenkins")
+     * @return Base64 encoded QR code image
+     */
+    public static String generateQRCodeImageBase64(String secretKey, String accountName, String issuer) {
+        return Base64.getEncoder().encodeToString(generateQRCodeImage(secretKey, accountName, issuer));
+    }
+
     /**
      * Generate QR code image as data URI for HTML img tag
      * @param secretKey The secret key
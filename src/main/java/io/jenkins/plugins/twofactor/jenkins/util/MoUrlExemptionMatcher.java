@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Matches a request path against a fixed set of URL fragments in a single pass.
+ * The fragments are compiled into an Aho-Corasick automaton, so a path is exempt when
+ * any fragment occurs anywhere in it (the same semantics as {@link String#contains}).
+ * Instances are immutable and safe to share between request threads.
+ */
+public final class MoUrlExemptionMatcher {
+
+    private static final int ASCII_SIZE = 128;
+
+    private final int[] asciiIndex;
+    private final char[] extendedChars;
+    private final int alphabetSize;
+    private final int[][] transitions;
+    private final boolean[] terminal;
+    private final List<String> patterns;
+
+    private MoUrlExemptionMatcher(List<String> patterns) {
+        this.patterns = patterns;
+
+        TreeSet<Character> extended = new TreeSet<>();
+        asciiIndex = new int[ASCII_SIZE];
+        int nextIndex = 1;
+        for (String pattern : patterns) {
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c < ASCII_SIZE) {
+                    if (asciiIndex[c] == 0) {
+                        asciiIndex[c] = nextIndex++;
+                    }
+                } else {
+                    extended.add(c);
+                }
+            }
+        }
+        extendedChars = new char[extended.size()];
+        int position = 0;
+        for (Character c : extended) {
+            extendedChars[position++] = c;
+        }
+        alphabetSize = nextIndex + extendedChars.length;
+
+        List<int[]> trie = new ArrayList<>();
+        List<Boolean> accepting = new ArrayList<>();
+        trie.add(new int[alphabetSize]);
+        accepting.add(false);
+        for (String pattern : patterns) {
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int symbol = indexOf(pattern.charAt(i));
+                if (trie.get(state)[symbol] == 0) {
+                    trie.get(state)[symbol] = trie.size();
+                    trie.add(new int[alphabetSize]);
+                    accepting.add(false);
+                }
+                state = trie.get(state)[symbol];
+            }
+            accepting.set(state, true);
+        }
+
+        transitions = trie.toArray(new int[0][]);
+        terminal = new boolean[transitions.length];
+        for (int i = 0; i < terminal.length; i++) {
+            terminal[i] = accepting.get(i);
+        }
+        buildFailureTransitions();
+    }
+
+    /**
+     * Compile the given URL fragments. Blank entries are ignored and duplicates are merged.
+     * @param urlFragments fragments that exempt a path when contained in it
+     * @return an immutable matcher
+     */
+    public static MoUrlExemptionMatcher compile(Collection<String> urlFragments) {
+        TreeSet<String> unique = new TreeSet<>();
+        for (String fragment : urlFragments) {
+            if (fragment != null && !fragment.trim().isEmpty()) {
+                unique.add(fragment.trim());
+            }
+        }
+        return new MoUrlExemptionMatcher(new ArrayList<>(unique));
+    }
+
+    /**
+     * Compile the given URL fragments.
+     * @param urlFragments fragments that exempt a path when contained in it
+     * @return an immutable matcher
+     */
+    public static MoUrlExemptionMatcher compile(String... urlFragments) {
+        return compile(Arrays.asList(urlFragments));
+    }
+
+    /**
+     * Check whether any compiled fragment occurs in the given path
+     * @param path request path, may be null
+     * @return true if the path contains at least one fragment
+     */
+    public boolean matches(String path) {
+        if (path == null || patterns.isEmpty()) {
+            return false;
+        }
+        int state = 0;
+        for (int i = 0; i < path.length(); i++) {
+            state = transitions[state][indexOf(path.charAt(i))];
+            if (terminal[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the compiled fragments, sorted
+     */
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    private int indexOf(char c) {
+        if (c < ASCII_SIZE) {
+            return asciiIndex[c];
+        }
+        int position = Arrays.binarySearch(extendedChars, c);
+        return position < 0 ? 0 : alphabetSize - extendedChars.length + position;
+    }
+
+    // Turns the trie into a complete automaton: missing edges follow the failure link of
+    // their state, and a state is terminal when any suffix of it is terminal.
+    private void buildFailureTransitions() {
+        int[] failure = new int[transitions.length];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < alphabetSize; symbol++) {
+            int next = transitions[0][symbol];
+            if (next != 0) {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            terminal[state] |= terminal[failure[state]];
+            for (int symbol = 0; symbol < alphabetSize; symbol++) {
+                int next = transitions[state][symbol];
+                if (next != 0) {
+                    failure[next] = transitions[failure[state]][symbol];
+                    queue.add(next);
+                } else {
+                    transitions[state][symbol] = transitions[failure[state]][symbol];
+                }
+            }
+        }
+    }
+}
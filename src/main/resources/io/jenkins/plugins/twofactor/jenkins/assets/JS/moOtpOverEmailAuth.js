@@ -10,3 +10,39 @@ document.addEventListener("DOMContentLoaded", function () {
         });
     });
 });
+
+//polling the delivery status of the OTP email while it is being sent
+document.addEventListener("DOMContentLoaded", function () {
+    const statusElement = document.getElementById("otpDeliveryStatus");
+    if (!statusElement) {
+        return;
+    }
+    const statusMessages = {
+        QUEUED: "Your OTP email is queued for delivery.",
+        SENDING: "Sending your OTP email...",
+        RETRYING: "The mail server did not respond, retrying...",
+        SENT: "Your OTP email has been sent.",
+        FAILED: "The OTP email could not be sent. Please try Resend OTP."
+    };
+
+    function pollDeliveryStatus() {
+        fetch(statusElement.dataset.statusUrl, { headers: { "Accept": "application/json" } })
+            .then((response) => response.json())
+            .then((response) => {
+                const status = response.data;
+                if (!status || status.state === "NONE") {
+                    return;
+                }
+                statusElement.textContent = status.message || statusMessages[status.state];
+                statusElement.classList.toggle("alert-danger", status.state === "FAILED");
+                statusElement.classList.toggle("alert-info", status.state !== "FAILED");
+                statusElement.style.display = "block";
+                if (!status.finished) {
+                    setTimeout(pollDeliveryStatus, 2000);
+                }
+            })
+            .catch(() => setTimeout(pollDeliveryStatus, 5000));
+    }
+
+    pollDeliveryStatus();
+});
@@ -50,6 +50,10 @@ document.addEventListener("DOMContentLoaded", function () {
     if (bulkActionButton && banner) {
         bulkActionButton.addEventListener('click', function (event) {
             event.preventDefault();
+            if (document.getElementById('action').value === 'provisionTotp') {
+                startTotpProvisioning();
+                return;
+            }
             banner.style.display = 'block';
             setTimeout(function () {
                 banner.style.display = 'none';
@@ -86,4 +90,55 @@ function showErrorBanner() {
             errorBanner.style.display = 'none';
         }, 5000);
     }
-}
\ No newline at end of file
+}
+
+//bulk TOTP provisioning, the progress is polled until the job finishes
+function startTotpProvisioning() {
+    var progress = document.getElementById('provisionProgress');
+    var body = new URLSearchParams();
+    document.querySelectorAll('input[name="selectedUsers"]:checked').forEach(function (checkbox) {
+        body.append('selectedUsers', checkbox.value);
+    });
+    var headers = { 'Content-Type': 'application/x-www-form-urlencoded', 'Accept': 'application/json' };
+    if (document.head.dataset.crumbHeader) {
+        headers[document.head.dataset.crumbHeader] = document.head.dataset.crumbValue;
+    }
+    fetch(progress.dataset.startUrl, { method: 'POST', headers: headers, body: body })
+        .then(function (response) { return response.json(); })
+        .then(function (response) {
+            if (response.status !== 'ok') {
+                showProvisionProgress(response.message);
+                return;
+            }
+            updateProvisionProgress(response.data);
+        })
+        .catch(showErrorBanner);
+}
+
+function pollProvisionStatus() {
+    var progress = document.getElementById('provisionProgress');
+    fetch(progress.dataset.statusUrl, { headers: { 'Accept': 'application/json' } })
+        .then(function (response) { return response.json(); })
+        .then(function (response) { updateProvisionProgress(response.data); })
+        .catch(function () { setTimeout(pollProvisionStatus, 5000); });
+}
+
+function updateProvisionProgress(job) {
+    if (!job || job.state === 'NONE') {
+        return;
+    }
+    var text = job.finished
+        ? 'TOTP provisioning finished: '
+        : 'Provisioning TOTP secrets, ' + job.processed + ' of ' + job.total + ' users processed: ';
+    showProvisionProgress(text + job.provisioned + ' provisioned, ' + job.skipped + ' already had a secret, '
+        + job.failed + ' failed.');
+    document.getElementById('provisionExport').style.display = job.finished ? 'inline' : 'none';
+    if (!job.finished) {
+        setTimeout(pollProvisionStatus, 1000);
+    }
+}
+
+function showProvisionProgress(message) {
+    document.getElementById('provisionProgressText').textContent = message;
+    document.getElementById('provisionProgress').style.display = 'block';
+}
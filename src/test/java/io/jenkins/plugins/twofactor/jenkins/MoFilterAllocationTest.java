@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import java.lang.management.ManagementFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import jenkins.model.Jenkins;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Guards the already verified user path of {@link MoFilter} against reintroduced garbage. Runs
+ * the filter until it is compiled, then measures the bytes the thread allocates per request,
+ * less what the Jenkins user lookup the filter starts with allocates by itself.
+ */
+public class MoFilterAllocationTest {
+  private static final String USER_ID = "alloc-user";
+  private static final int WARMUP_REQUESTS = 50_000;
+  private static final int MEASURED_REQUESTS = 100_000;
+  // Leaves room for measurement noise, a per request key, list or log message costs far more
+  private static final double MAX_BYTES_PER_REQUEST = 8;
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void verifiedUserPathDoesNotAllocate() throws Exception {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    MoFilterFixture.enableTfa(10);
+    MoFilterFixture.createUser(USER_ID, 2);
+    MoFilter filter = new MoFilter();
+    MoServletStubs.Request request =
+        new MoServletStubs.Request("/jenkins/job/example/", "/job/example/")
+            .withSession(MoFilterFixture.verifiedSession(USER_ID));
+    MoServletStubs.Response response = new MoServletStubs.Response();
+    MoServletStubs.Chain chain = new MoServletStubs.Chain();
+
+    try (ACLContext ignored = ACL.as2(MoFilterFixture.authenticationOf(USER_ID))) {
+      for (int i = 0; i < WARMUP_REQUESTS; i++) {
+        filter.doFilter(request, response, chain);
+        lookUpUser();
+      }
+
+      long threadId = Thread.currentThread().getId();
+      long before = threads.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < MEASURED_REQUESTS; i++) {
+        lookUpUser();
+      }
+      long lookups = threads.getThreadAllocatedBytes(threadId) - before;
+
+      before = threads.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < MEASURED_REQUESTS; i++) {
+        filter.doFilter(request, response, chain);
+      }
+      long requests = threads.getThreadAllocatedBytes(threadId) - before;
+
+      assertEquals("every request is let through", WARMUP_REQUESTS + MEASURED_REQUESTS, chain.getPassed());
+      double perRequest = (double) (requests - lookups) / MEASURED_REQUESTS;
+      assertTrue(
+          "verified requests allocated " + perRequest + " bytes each beyond the user lookup",
+          perRequest <= MAX_BYTES_PER_REQUEST);
+    }
+  }
+
+  // Core's extension and user lookups may allocate, which is not the plugin's to fix
+  private static User lookUpUser() {
+    return User.get2(Jenkins.getAuthentication2());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import hudson.model.User;
+import hudson.security.SecurityRealm;
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoOtpOverEmailConfig;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoSecurityQuestionConfig;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import java.io.IOException;
+import java.util.Collections;
+import net.sf.json.JSONObject;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Puts a running Jenkins into the states the {@link MoFilter} benchmarks and tests exercise.
+ */
+public final class MoFilterFixture {
+
+  private MoFilterFixture() {}
+
+  /**
+   * Enable 2FA with all three methods, plus the given number of admin configured URL exemptions
+   * that no request path contains.
+   */
+  public static void enableTfa(int customExemptUrls) {
+    StringBuilder exemptUrls = new StringBuilder();
+    for (int i = 0; i < customExemptUrls; i++) {
+      exemptUrls.append("/custom-exempt-").append(i).append(' ');
+    }
+    JSONObject form = new JSONObject();
+    form.put("enableTfa", true);
+    form.put("enableSecurityQuestion", true);
+    form.put("enableTotpAuthentication", true);
+    form.put("exemptUrls", exemptUrls.toString());
+    JSONObject otpOverEmail = new JSONObject();
+    otpOverEmail.put("senderEmailAddress", "jenkins@example.com");
+    form.put("enableOtpOverEmail", otpOverEmail);
+    MoGlobalConfig.get().saveMoGlobalConfigViewForm(form);
+  }
+
+  /**
+   * Create a user who has configured the given number of 2FA methods, from 0 to 3.
+   */
+  public static User createUser(String userId, int configuredMethods) throws IOException {
+    User user = User.getById(userId, true);
+    if (configuredMethods >= 1) {
+      user.addProperty(new MoTotpConfig(Secret.fromString(MoTotpUtil.generateSecretKey()), true));
+    }
+    if (configuredMethods >= 2) {
+      user.addProperty(new MoOtpOverEmailConfig(true));
+    }
+    if (configuredMethods >= 3) {
+      Secret question = Secret.fromString("question");
+      Secret answer = Secret.fromString("answer");
+      user.addProperty(
+          new MoSecurityQuestionConfig(question, question, question, answer, answer, answer, true));
+    }
+    return user;
+  }
+
+  /**
+   * @return an authenticated principal as Jenkins builds it after a form login
+   */
+  public static Authentication authenticationOf(String userId) {
+    return new UsernamePasswordAuthenticationToken(
+        userId, null, Collections.singleton(SecurityRealm.AUTHENTICATED_AUTHORITY2));
+  }
+
+  /**
+   * @return a session in which the user already passed 2FA
+   */
+  public static MoServletStubs.Session verifiedSession(String userId) {
+    MoServletStubs.Session session = new MoServletStubs.Session("verified-" + userId);
+    session.setAttribute(MoFilter.getSessionVerificationKey(userId), "true");
+    return session;
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+
+/**
+ * Minimal servlet objects for driving {@link MoFilter} outside a container. The methods the
+ * filter calls are plain fields, so that benchmarks and allocation tests measure the filter and
+ * not the stubs; anything else throws {@link UnsupportedOperationException}.
+ */
+public final class MoServletStubs {
+
+  private MoServletStubs() {}
+
+  public static final class Request extends HttpServletRequestWrapper {
+    private final String requestUri;
+    private final String pathInfo;
+    private String authorization;
+    private HttpSession session;
+
+    public Request(String requestUri, String pathInfo) {
+      super(unsupported(HttpServletRequest.class));
+      this.requestUri = requestUri;
+      this.pathInfo = pathInfo;
+    }
+
+    public Request withSession(HttpSession session) {
+      this.session = session;
+      return this;
+    }
+
+    public Request withAuthorization(String authorization) {
+      this.authorization = authorization;
+      return this;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return "Authorization".equalsIgnoreCase(name) ? authorization : null;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+      if (session == null && create) {
+        session = new Session("stub-session");
+      }
+      return session;
+    }
+
+    @Override
+    public HttpSession getSession() {
+      return getSession(true);
+    }
+
+    @Override
+    public String getRequestURI() {
+      return requestUri;
+    }
+
+    @Override
+    public String getPathInfo() {
+      return pathInfo;
+    }
+  }
+
+  public static final class Response extends HttpServletResponseWrapper {
+    private String redirect;
+
+    public Response() {
+      super(unsupported(HttpServletResponse.class));
+    }
+
+    @Override
+    public void sendRedirect(String location) {
+      redirect = location;
+    }
+
+    /**
+     * @return the location of the last redirect, null if there was none
+     */
+    public String getRedirect() {
+      return redirect;
+    }
+  }
+
+  public static final class Session implements HttpSession {
+    private final String id;
+    private final long creationTime = System.currentTimeMillis();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private int maxInactiveInterval;
+
+    public Session(String id) {
+      this.id = id;
+    }
+
+    @Override
+    public long getCreationTime() {
+      return creationTime;
+    }
+
+    @Override
+    public String getId() {
+      return id;
+    }
+
+    @Override
+    public long getLastAccessedTime() {
+      return creationTime;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+      return null;
+    }
+
+    @Override
+    public void setMaxInactiveInterval(int interval) {
+      maxInactiveInterval = interval;
+    }
+
+    @Override
+    public int getMaxInactiveInterval() {
+      return maxInactiveInterval;
+    }
+
+    @Override
+    @Deprecated
+    public HttpSessionContext getSessionContext() {
+      return null;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      return attributes.get(name);
+    }
+
+    @Override
+    @Deprecated
+    public Object getValue(String name) {
+      return getAttribute(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+      return Collections.enumeration(attributes.keySet());
+    }
+
+    @Override
+    @Deprecated
+    public String[] getValueNames() {
+      return attributes.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+      attributes.put(name, value);
+    }
+
+    @Override
+    @Deprecated
+    public void putValue(String name, Object value) {
+      setAttribute(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      attributes.remove(name);
+    }
+
+    @Override
+    @Deprecated
+    public void removeValue(String name) {
+      removeAttribute(name);
+    }
+
+    @Override
+    public void invalidate() {
+      attributes.clear();
+    }
+
+    @Override
+    public boolean isNew() {
+      return false;
+    }
+  }
+
+  /** Counts the requests the filter let through. */
+  public static final class Chain implements FilterChain {
+    private long passed;
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) {
+      passed++;
+    }
+
+    public long getPassed() {
+      return passed;
+    }
+  }
+
+  private static <T> T unsupported(Class<T> type) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                  return "unsupported " + type.getSimpleName();
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            }));
+  }
+}
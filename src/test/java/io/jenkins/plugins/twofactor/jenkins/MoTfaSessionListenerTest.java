@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static io.jenkins.plugins.twofactor.jenkins.MoFilter.userAuthenticationStatus;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.ExtensionList;
+import javax.servlet.http.HttpSessionEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MoTfaSessionListenerTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void keepsUserStateWhileAnotherSessionLives() {
+    MoTfaSessionListener.register("alice", "first");
+    MoTfaSessionListener.register("alice", "second");
+    userAuthenticationStatus.update("alice", true);
+
+    destroy("first");
+    assertTrue(userAuthenticationStatus.isAuthenticated("alice"));
+
+    destroy("second");
+    assertFalse(userAuthenticationStatus.isAuthenticated("alice"));
+    assertEquals(0, MoTfaSessionListener.getTrackedUserCount());
+  }
+
+  @Test
+  public void ignoresUnregisteredSession() {
+    MoTfaSessionListener.register("bob", "registered");
+    userAuthenticationStatus.update("bob", true);
+
+    destroy("unregistered");
+    assertTrue(userAuthenticationStatus.isAuthenticated("bob"));
+
+    destroy("registered");
+    assertFalse(userAuthenticationStatus.isAuthenticated("bob"));
+  }
+
+  @Test
+  public void matchesUserIdsByIdStrategy() {
+    // The default id strategy ignores case
+    MoTfaSessionListener.register("Carol", "first");
+    MoTfaSessionListener.register("carol", "second");
+    userAuthenticationStatus.update("carol", true);
+
+    destroy("first");
+    assertTrue(userAuthenticationStatus.isAuthenticated("carol"));
+    assertEquals(1, MoTfaSessionListener.getTrackedUserCount());
+
+    destroy("second");
+    assertFalse(userAuthenticationStatus.isAuthenticated("carol"));
+    assertEquals(0, MoTfaSessionListener.getTrackedUserCount());
+  }
+
+  private static void destroy(String sessionId) {
+    ExtensionList.lookupSingleton(MoTfaSessionListener.class)
+        .sessionDestroyed(new HttpSessionEvent(new MoServletStubs.Session(sessionId)));
+  }
+}
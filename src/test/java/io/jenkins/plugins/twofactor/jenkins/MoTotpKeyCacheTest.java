@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.User;
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpEngine;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MoTotpKeyCacheTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  @Before
+  public void emptyCache() {
+    MoTotpKeyCache.evictIdle(Long.MAX_VALUE, false);
+  }
+
+  @Test
+  public void handsOutCopies() {
+    String plainText = MoTotpUtil.generateSecretKey();
+    Secret secret = Secret.fromString(plainText);
+
+    byte[] first = MoTotpKeyCache.get("copies", secret);
+    Arrays.fill(first, (byte) 0);
+    byte[] second = MoTotpKeyCache.get("copies", secret);
+
+    assertNotSame(first, second);
+    assertArrayEquals(MoTotpEngine.decodeBase32(plainText), second);
+    assertEquals(1, MoTotpKeyCache.size());
+  }
+
+  @Test
+  public void rejectsBlankAndInvalidSecrets() {
+    assertNull(MoTotpKeyCache.get("blank", Secret.fromString("")));
+    assertNull(MoTotpKeyCache.get("invalid", Secret.fromString("not base32!")));
+    assertEquals(0, MoTotpKeyCache.size());
+  }
+
+  @Test
+  public void newSecretReplacesKey() throws Exception {
+    Secret secret = Secret.fromString(MoTotpUtil.generateSecretKey());
+    MoTotpConfig config = new MoTotpConfig(secret, true);
+    User.getById("reset", true).addProperty(config);
+    MoTotpKeyCache.get("reset", secret);
+
+    String newPlainText = MoTotpUtil.generateSecretKey();
+    config.setSecretKey(Secret.fromString(newPlainText));
+    assertEquals(0, MoTotpKeyCache.size());
+
+    assertArrayEquals(
+        MoTotpEngine.decodeBase32(newPlainText), MoTotpKeyCache.get("reset", config.getSecretKey()));
+  }
+
+  @Test
+  public void invalidateDropsKey() {
+    MoTotpKeyCache.get("logout", Secret.fromString(MoTotpUtil.generateSecretKey()));
+
+    MoTotpKeyCache.invalidate("logout");
+
+    assertEquals(0, MoTotpKeyCache.size());
+  }
+
+  @Test
+  public void dropsIdleKeys() {
+    MoTotpKeyCache.get("idle", Secret.fromString(MoTotpUtil.generateSecretKey()));
+    long now = System.currentTimeMillis();
+
+    assertEquals(0, MoTotpKeyCache.evictIdle(now + MoTotpKeyCache.IDLE_TIMEOUT_MILLIS / 2, false));
+    assertEquals(1, MoTotpKeyCache.evictIdle(now + MoTotpKeyCache.IDLE_TIMEOUT_MILLIS + 1000, false));
+    assertEquals(0, MoTotpKeyCache.size());
+  }
+
+  @Test
+  public void staysWithinBound() {
+    Secret secret = Secret.fromString(MoTotpUtil.generateSecretKey());
+    for (int i = 0; i <= MoTotpKeyCache.MAX_ENTRIES; i++) {
+      MoTotpKeyCache.get("bound-" + i, secret);
+      assertTrue(MoTotpKeyCache.size() <= MoTotpKeyCache.MAX_ENTRIES);
+    }
+  }
+
+  @Test
+  public void destroyZeroesKeyAndStopsCopies() {
+    byte[] key = {1, 2, 3, 4};
+    MoTotpKeyCache.Entry entry =
+        new MoTotpKeyCache.Entry(Secret.fromString("AEBAGBA="), key, System.currentTimeMillis());
+    assertArrayEquals(new byte[] {1, 2, 3, 4}, entry.copy());
+
+    entry.destroy();
+
+    assertArrayEquals(new byte[4], key);
+    assertNull(entry.copy());
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.User;
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.sf.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MoTotpProvisionerTest {
+  private static final String USER_MANAGEMENT = "manage/tfaGlobalConfig/userManagement/";
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void provisionsEveryUserOnce() throws Exception {
+    // More users than one batch, so the work is split across workers
+    List<String> userIds = createUsers(120);
+
+    MoTotpProvisioner.Job first = awaitFinished(MoTotpProvisioner.start(userIds));
+    assertEquals(120, first.getProvisioned());
+    assertEquals(0, first.getSkipped());
+    assertEquals(0, first.getFailed());
+    Map<String, String> secrets = new HashMap<>();
+    for (String userId : userIds) {
+      String secret = Secret.toString(totpConfig(userId).getSecretKey());
+      assertFalse(userId, secret.isEmpty());
+      assertFalse(totpConfig(userId).isConfigured());
+      secrets.put(userId, secret);
+    }
+
+    MoTotpProvisioner.Job second = awaitFinished(MoTotpProvisioner.start(userIds));
+    assertEquals(0, second.getProvisioned());
+    assertEquals(120, second.getSkipped());
+    for (String userId : userIds) {
+      assertEquals(secrets.get(userId), Secret.toString(totpConfig(userId).getSecretKey()));
+    }
+  }
+
+  @Test
+  public void countsUnknownUsersAsFailed() throws Exception {
+    List<String> userIds = createUsers(2);
+    userIds.add("no-such-user");
+
+    MoTotpProvisioner.Job job = awaitFinished(MoTotpProvisioner.start(userIds));
+
+    assertEquals(2, job.getProvisioned());
+    assertEquals(1, job.getFailed());
+    assertEquals(3, job.getProcessed());
+  }
+
+  @Test
+  public void reportsStatus() throws Exception {
+    awaitFinished(MoTotpProvisioner.start(createUsers(3)));
+
+    JSONObject status =
+        JSONObject.fromObject(
+            j.createWebClient()
+                .goTo(USER_MANAGEMENT + "provisionStatus", "application/json")
+                .getWebResponse()
+                .getContentAsString());
+
+    assertEquals("FINISHED", status.getString("state"));
+    assertTrue(status.getBoolean("finished"));
+    assertEquals(3, status.getInt("total"));
+    assertEquals(3, status.getInt("processed"));
+    assertEquals(3, status.getInt("provisioned"));
+  }
+
+  @Test
+  public void exportNeutralizesFormulas() throws Exception {
+    User.getById("=HYPERLINK(\"x\")", true);
+    List<String> userIds = new ArrayList<>();
+    userIds.add("=HYPERLINK(\"x\")");
+    awaitFinished(MoTotpProvisioner.start(userIds));
+
+    String csv =
+        j.createWebClient()
+            .goTo(USER_MANAGEMENT + "provisionExport", "text/csv")
+            .getWebResponse()
+            .getContentAsString();
+
+    assertTrue(csv, csv.contains("\"'=HYPERLINK(\"\"x\"\")\","));
+  }
+
+  @Test
+  public void quotesAndPrefixesCsvCells() {
+    assertEquals("\"alice\"", MoUserManagement.toCsv("alice"));
+    assertEquals("\"say \"\"hi\"\"\"", MoUserManagement.toCsv("say \"hi\""));
+    assertEquals("\"'=1+1\"", MoUserManagement.toCsv("=1+1"));
+    assertEquals("\"'+1\"", MoUserManagement.toCsv("+1"));
+    assertEquals("\"'-1\"", MoUserManagement.toCsv("-1"));
+    assertEquals("\"'@SUM(A1)\"", MoUserManagement.toCsv("@SUM(A1)"));
+    assertEquals("\"\"", MoUserManagement.toCsv(""));
+  }
+
+  private static List<String> createUsers(int count) {
+    List<String> userIds = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String userId = "provisioned-" + i;
+      User.getById(userId, true);
+      userIds.add(userId);
+    }
+    return userIds;
+  }
+
+  private static MoTotpConfig totpConfig(String userId) {
+    return User.getById(userId, false).getProperty(MoTotpConfig.class);
+  }
+
+  private static MoTotpProvisioner.Job awaitFinished(MoTotpProvisioner.Job job)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 60_000L;
+    while (!job.isFinished()) {
+      assertTrue("provisioning finished in time", System.currentTimeMillis() < deadline);
+      Thread.sleep(10L);
+    }
+    return job;
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+import hudson.model.User;
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoTotpConfig;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Serves the enrollment QR code through {@link MoTotpConfig#doQrCode}, which answers from
+ * {@link MoTotpQrCache}.
+ */
+public class MoTotpQrCacheTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  private MoTotpConfig config;
+
+  @Before
+  public void enroll() throws Exception {
+    j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+    config = new MoTotpConfig(Secret.fromString(MoTotpUtil.generateSecretKey()), false);
+    User.getById("alice", true).addProperty(config);
+    User.getById("bob", true);
+    MoTotpQrCache.invalidate("alice");
+  }
+
+  @Test
+  public void revalidatesWithEtag() throws Exception {
+    JenkinsRule.WebClient wc = j.createWebClient().login("alice");
+    Response first = get(wc, null);
+    assertEquals(200, first.status);
+    assertEquals("private, no-cache", first.cacheControl);
+    assertNotNull(first.etag);
+
+    Response revalidated = get(wc, first.etag);
+    assertEquals(304, revalidated.status);
+    assertEquals(first.etag, revalidated.etag);
+    assertEquals(1, MoTotpQrCache.size());
+  }
+
+  @Test
+  public void newSecretChangesImage() throws Exception {
+    JenkinsRule.WebClient wc = j.createWebClient().login("alice");
+    String etag = get(wc, null).etag;
+
+    config.setSecretKey(Secret.fromString(MoTotpUtil.generateSecretKey()));
+
+    Response afterReset = get(wc, etag);
+    assertEquals(200, afterReset.status);
+    assertNotEquals(etag, afterReset.etag);
+  }
+
+  @Test
+  public void servesOnlyTheOwner() throws Exception {
+    assertEquals(403, get(j.createWebClient().login("bob"), null).status);
+    assertEquals(403, get(j.createWebClient(), null).status);
+  }
+
+  private static Response get(JenkinsRule.WebClient wc, String ifNoneMatch) throws Exception {
+    wc.setThrowExceptionOnFailingStatusCode(false);
+    if (ifNoneMatch != null) {
+      wc.addRequestHeader("If-None-Match", ifNoneMatch);
+    } else {
+      wc.removeRequestHeader("If-None-Match");
+    }
+    // Held as var, the HtmlUnit response type changed packages between test harness versions
+    var response = wc.getPage(wc.getContextPath() + "user/alice/totpConfig/qrCode").getWebResponse();
+    return new Response(
+        response.getStatusCode(),
+        response.getResponseHeaderValue("ETag"),
+        response.getResponseHeaderValue("Cache-Control"));
+  }
+
+  private static final class Response {
+    final int status;
+    final String etag;
+    final String cacheControl;
+
+    Response(int status, String etag, String cacheControl) {
+      this.status = status;
+      this.etag = etag;
+      this.cacheControl = cacheControl;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MoTotpReplayGuardTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void rejectsReplayedAndOlderSteps() {
+    long step = MoTotpUtil.currentTimeStep();
+
+    assertTrue(MoTotpReplayGuard.tryAccept("replay", step));
+    assertFalse(MoTotpReplayGuard.tryAccept("replay", step));
+    assertFalse(MoTotpReplayGuard.tryAccept("replay", step - 1));
+    assertTrue(MoTotpReplayGuard.tryAccept("replay", step + 1));
+    // Steps are tracked per user
+    assertTrue(MoTotpReplayGuard.tryAccept("other", step));
+  }
+
+  @Test
+  public void forgetAllowsStepAgain() {
+    long step = MoTotpUtil.currentTimeStep();
+
+    assertTrue(MoTotpReplayGuard.tryAccept("reset", step));
+    MoTotpReplayGuard.forget("reset");
+    assertTrue(MoTotpReplayGuard.tryAccept("reset", step));
+  }
+
+  @Test
+  public void evictsOnlyStaleEntries() {
+    long step = MoTotpUtil.currentTimeStep();
+    MoTotpReplayGuard.tryAccept("stale", step - 1000);
+    MoTotpReplayGuard.tryAccept("fresh", step);
+
+    MoTotpReplayGuard.evictStale();
+
+    assertTrue(MoTotpReplayGuard.tryAccept("stale", step - 1000));
+    assertFalse(MoTotpReplayGuard.tryAccept("fresh", step));
+  }
+
+  @Test
+  public void snapshotSurvivesRestart() {
+    long step = MoTotpUtil.currentTimeStep();
+    MoTotpReplayGuard.tryAccept("persisted", step);
+    MoTotpReplayGuard.save();
+
+    // Lose the in-memory entry, as a restart would, then read the snapshot back
+    MoTotpReplayGuard.forget("persisted");
+    int before = MoTotpReplayGuard.size();
+    MoTotpReplayGuard.load();
+
+    assertEquals(before + 1, MoTotpReplayGuard.size());
+    assertFalse(MoTotpReplayGuard.tryAccept("persisted", step));
+    assertTrue(MoTotpReplayGuard.tryAccept("persisted", step + 1));
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import hudson.model.User;
+import hudson.tasks.Mailer;
+import io.jenkins.plugins.twofactor.jenkins.MoFilter;
+import io.jenkins.plugins.twofactor.jenkins.MoFilterFixture;
+import io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig.MoOtpOverEmailConfig;
+import jakarta.mail.internet.MimeMessage;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.sf.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Drives the email OTP flow for many users at once against {@link MoStubSmtpServer}: login,
+ * request an OTP, read it from the delivered email and submit it. Reports how long emails take
+ * to arrive and how long the whole flow takes, so changes to OTP mail delivery can be compared
+ * under the same load.
+ *
+ * <p>Not part of the regular test run, it is skipped unless started with {@code mvn test
+ * -Dtest=MoOtpEmailLoadHarness -DotpEmailLoad=true}. Tune it with the system properties {@code
+ * users}, {@code latencyMillis}, {@code failEvery} and {@code maxConnections}, the last three
+ * being applied to the stub relay.
+ */
+public class MoOtpEmailLoadHarness {
+  private static final Logger LOGGER = Logger.getLogger(MoOtpEmailLoadHarness.class.getName());
+  private static final Pattern OTP = Pattern.compile("code is: (\\d+)");
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  // Checked before the class, so a regular test run does not even start Jenkins for it
+  @BeforeClass
+  public static void onlyWhenRequested() {
+    assumeTrue("Load harness, enable with -DotpEmailLoad=true", Boolean.getBoolean("otpEmailLoad"));
+  }
+
+  @Test
+  public void emailOtpUnderLoad() throws Exception {
+    int users = Integer.getInteger("users", 50);
+    try (MoStubSmtpServer smtp =
+        new MoStubSmtpServer()
+            .withLatency(Long.getLong("latencyMillis", 0L))
+            .withFailEvery(Integer.getInteger("failEvery", 0))
+            .withMaxConnections(Integer.getInteger("maxConnections", 0))) {
+      j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+      j.jenkins.setCrumbIssuer(null);
+      MoFilterFixture.enableTfa(0);
+      Mailer.descriptor().setSmtpHost("127.0.0.1");
+      Mailer.descriptor().setSmtpPort(String.valueOf(smtp.getPort()));
+      MoOtpMailSender.invalidate();
+      for (int i = 0; i < users; i++) {
+        String userId = "load-" + i;
+        User user = User.getById(userId, true);
+        user.addProperty(new Mailer.UserProperty(userId + "@example.com"));
+        user.addProperty(new MoOtpOverEmailConfig(false));
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(users);
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Flow>> futures = new ArrayList<>();
+      for (int i = 0; i < users; i++) {
+        String userId = "load-" + i;
+        futures.add(
+            pool.submit(
+                () -> {
+                  start.await();
+                  return runFlow(smtp, userId);
+                }));
+      }
+      long began = System.nanoTime();
+      start.countDown();
+      List<Flow> flows = new ArrayList<>();
+      for (Future<Flow> future : futures) {
+        flows.add(future.get(5, TimeUnit.MINUTES));
+      }
+      long elapsed = System.nanoTime() - began;
+      pool.shutdown();
+
+      report(users, elapsed, flows, smtp);
+      if (Integer.getInteger("failEvery", 0) == 0 && Integer.getInteger("maxConnections", 0) == 0) {
+        assertEquals(users, flows.stream().filter(flow -> flow.verified).count());
+      }
+    }
+  }
+
+  private Flow runFlow(MoStubSmtpServer smtp, String userId) throws Exception {
+    HttpClient client =
+        HttpClient.newBuilder()
+            .cookieHandler(new CookieManager())
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+    Flow flow = new Flow();
+    long began = System.nanoTime();
+    post(client, "j_spring_security_check", "j_username=" + userId + "&j_password=" + userId);
+
+    long requested = System.nanoTime();
+    post(client, "tfaUserAuth/otpOverEmailAuth/resendOtp", "");
+    MimeMessage message = smtp.awaitMessage(userId + "@example.com", 1, TimeUnit.MINUTES);
+    if (message == null) {
+      return flow;
+    }
+    flow.deliveryNanos = System.nanoTime() - requested;
+    Matcher otp = OTP.matcher(String.valueOf(message.getContent()));
+    if (!otp.find()) {
+      return flow;
+    }
+
+    JSONObject form = new JSONObject();
+    form.put("emailOtpForVerification", otp.group(1));
+    post(
+        client,
+        "tfaUserAuth/otpOverEmailAuth/saveOrValidateOtpOverEmailConfig",
+        "json=" + URLEncoder.encode(form.toString(), StandardCharsets.UTF_8));
+    flow.flowNanos = System.nanoTime() - began;
+    flow.verified = MoFilter.userAuthenticationStatus.isAuthenticated(userId);
+    return flow;
+  }
+
+  private void post(HttpClient client, String path, String body) throws Exception {
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(j.getURL() + path))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+    HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+    if (response.statusCode() >= 400) {
+      throw new IllegalStateException(path + " answered " + response.statusCode());
+    }
+  }
+
+  private static void report(int users, long elapsedNanos, List<Flow> flows, MoStubSmtpServer smtp) {
+    List<Long> delivery = new ArrayList<>();
+    List<Long> flow = new ArrayList<>();
+    for (Flow f : flows) {
+      if (f.deliveryNanos > 0) {
+        delivery.add(f.deliveryNanos);
+      }
+      if (f.verified) {
+        flow.add(f.flowNanos);
+      }
+    }
+    LOGGER.info(String.format(
+        "%d users in %d ms, %.1f verified logins/s",
+        users,
+        TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+        flow.size() * 1e9 / elapsedNanos));
+    LOGGER.info(String.format(
+        "delivered %d, verified %d, relay accepted %d, rejected %d, throttled %d, connections %d",
+        delivery.size(),
+        flow.size(),
+        smtp.getAcceptedMessages(),
+        smtp.getRejectedMessages(),
+        smtp.getThrottledConnections(),
+        smtp.getTotalConnections()));
+    LOGGER.info("OTP delivery " + percentiles(delivery));
+    LOGGER.info("Full flow " + percentiles(flow));
+    LOGGER.info("OTP mail circuit " + MoOtpMailSender.getCircuitState());
+  }
+
+  private static String percentiles(List<Long> nanos) {
+    if (nanos.isEmpty()) {
+      return "n/a";
+    }
+    Collections.sort(nanos);
+    return String.format(
+        "p50 %d ms, p95 %d ms, p99 %d ms",
+        TimeUnit.NANOSECONDS.toMillis(percentile(nanos, 50)),
+        TimeUnit.NANOSECONDS.toMillis(percentile(nanos, 95)),
+        TimeUnit.NANOSECONDS.toMillis(percentile(nanos, 99)));
+  }
+
+  private static long percentile(List<Long> sorted, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+    return sorted.get(Math.max(index, 0));
+  }
+
+  private static final class Flow {
+    long deliveryNanos;
+    long flowNanos;
+    boolean verified;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import hudson.tasks.Mailer;
+import io.jenkins.plugins.twofactor.jenkins.util.MoCircuitBreaker;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class MoOtpMailSenderTest {
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  private MoStubSmtpServer smtp;
+
+  @Before
+  public void startRelay() throws Exception {
+    smtp = new MoStubSmtpServer();
+    Mailer.descriptor().setSmtpHost("127.0.0.1");
+    Mailer.descriptor().setSmtpPort(String.valueOf(smtp.getPort()));
+    MoOtpMailSender.invalidate();
+  }
+
+  @After
+  public void stopRelay() throws Exception {
+    MoOtpMailSender.invalidate();
+    smtp.close();
+  }
+
+  @Test
+  public void reusesPooledConnection() throws Exception {
+    MoOtpMailSender.send("jenkins@example.com", "alice@example.com", "first", "<p>1</p>");
+    MoOtpMailSender.send("jenkins@example.com", "alice@example.com", "second", "<p>2</p>");
+
+    assertNotNull(smtp.awaitMessage("alice@example.com", 10, TimeUnit.SECONDS));
+    assertNotNull(smtp.awaitMessage("alice@example.com", 10, TimeUnit.SECONDS));
+    assertEquals(1, smtp.getTotalConnections());
+  }
+
+  @Test
+  public void retriesStalePooledConnection() throws Exception {
+    MoOtpMailSender.send("jenkins@example.com", "alice@example.com", "first", "<p>1</p>");
+    assertNotNull(smtp.awaitMessage("alice@example.com", 10, TimeUnit.SECONDS));
+
+    // The pooled connection passes its NOOP check and is dropped before the message goes out
+    smtp.withDropAfterNoop(true);
+    MoOtpMailSender.send("jenkins@example.com", "alice@example.com", "second", "<p>2</p>");
+
+    assertNotNull(smtp.awaitMessage("alice@example.com", 10, TimeUnit.SECONDS));
+    assertEquals(2, smtp.getTotalConnections());
+    assertEquals(MoCircuitBreaker.State.CLOSED, MoOtpMailSender.getCircuitState());
+  }
+}
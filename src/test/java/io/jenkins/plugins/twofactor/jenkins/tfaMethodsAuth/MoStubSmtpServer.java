@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.tfaMethodsAuth;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process SMTP server for tests, speaking just enough of RFC 5321 for Jakarta Mail. Accepted
+ * messages are parsed and kept per recipient. Latency, failures and throttling can be injected
+ * to see how OTP delivery copes with a slow or unhealthy relay.
+ */
+public final class MoStubSmtpServer implements Closeable {
+  private final ServerSocket serverSocket;
+  private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "MoStubSmtpServer connection");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Map<String, BlockingQueue<MimeMessage>> inboxes = new ConcurrentHashMap<>();
+  private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger openConnections = new AtomicInteger();
+  private final AtomicLong acceptedMessages = new AtomicLong();
+  private final AtomicLong rejectedMessages = new AtomicLong();
+  private final AtomicLong throttledConnections = new AtomicLong();
+  private final AtomicLong totalConnections = new AtomicLong();
+
+  private volatile long latencyMillis;
+  private volatile int failEvery;
+  private volatile int maxConnections;
+  private volatile boolean dropAfterNoop;
+
+  public MoStubSmtpServer() throws IOException {
+    serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::acceptLoop, "MoStubSmtpServer acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Delay the reply to every command, as a relay far away or under load would. */
+  public MoStubSmtpServer withLatency(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+    return this;
+  }
+
+  /** Answer every n-th message with a temporary failure, 0 to accept all of them. */
+  public MoStubSmtpServer withFailEvery(int failEvery) {
+    this.failEvery = failEvery;
+    return this;
+  }
+
+  /** Refuse connections beyond this many open ones with 421, 0 for no limit. */
+  public MoStubSmtpServer withMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+    return this;
+  }
+
+  /**
+   * Acknowledge the next NOOP and then drop the connection, like a relay that closes an idle
+   * connection just after a client checked it.
+   */
+  public MoStubSmtpServer withDropAfterNoop(boolean dropAfterNoop) {
+    this.dropAfterNoop = dropAfterNoop;
+    return this;
+  }
+
+  /**
+   * Wait for the next message to a recipient.
+   * @return the message, or null if none arrived in time
+   */
+  public MimeMessage awaitMessage(String recipient, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return inbox(recipient).poll(timeout, unit);
+  }
+
+  public long getAcceptedMessages() {
+    return acceptedMessages.get();
+  }
+
+  public long getRejectedMessages() {
+    return rejectedMessages.get();
+  }
+
+  public long getThrottledConnections() {
+    return throttledConnections.get();
+  }
+
+  public long getTotalConnections() {
+    return totalConnections.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Socket socket : openSockets) {
+      socket.close();
+    }
+    connections.shutdownNow();
+  }
+
+  private BlockingQueue<MimeMessage> inbox(String recipient) {
+    return inboxes.computeIfAbsent(
+        recipient.toLowerCase(Locale.ROOT), key -> new LinkedBlockingQueue<>());
+  }
+
+  private void acceptLoop() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        totalConnections.incrementAndGet();
+        connections.execute(() -> serve(socket));
+      } catch (IOException e) {
+        // Closed
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    openSockets.add(socket);
+    int open = openConnections.incrementAndGet();
+    try (Socket ignored = socket;
+        BufferedReader in =
+            new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1))) {
+      OutputStream out = socket.getOutputStream();
+      int limit = maxConnections;
+      if (limit > 0 && open > limit) {
+        throttledConnections.incrementAndGet();
+        reply(out, "421 4.7.0 Too many connections, try again later");
+        return;
+      }
+      reply(out, "220 localhost stub ESMTP");
+
+      String sender = null;
+      String recipient = null;
+      String line;
+      while ((line = in.readLine()) != null) {
+        String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase(Locale.ROOT) : line;
+        pause();
+        switch (command) {
+          case "EHLO":
+            reply(out, "250-localhost\r\n250-8BITMIME\r\n250 SMTPUTF8");
+            break;
+          case "HELO":
+          case "RSET":
+            sender = null;
+            recipient = null;
+            reply(out, "250 OK");
+            break;
+          case "NOOP":
+            reply(out, "250 OK");
+            if (dropAfterNoop) {
+              dropAfterNoop = false;
+              return;
+            }
+            break;
+          case "MAIL":
+            sender = line;
+            reply(out, "250 OK");
+            break;
+          case "RCPT":
+            recipient = address(line);
+            reply(out, "250 OK");
+            break;
+          case "DATA":
+            if (sender == null || recipient == null) {
+              reply(out, "503 5.5.1 Bad sequence of commands");
+              break;
+            }
+            reply(out, "354 End data with <CR><LF>.<CR><LF>");
+            String data = readData(in);
+            long count = acceptedMessages.get() + rejectedMessages.get() + 1;
+            int every = failEvery;
+            if (every > 0 && count % every == 0) {
+              rejectedMessages.incrementAndGet();
+              reply(out, "451 4.3.0 Temporary failure, try again later");
+            } else {
+              deliver(recipient, data);
+              acceptedMessages.incrementAndGet();
+              reply(out, "250 OK queued");
+            }
+            sender = null;
+            recipient = null;
+            break;
+          case "QUIT":
+            reply(out, "221 Bye");
+            return;
+          default:
+            reply(out, "502 5.5.2 Command not recognized");
+        }
+      }
+    } catch (SocketException e) {
+      // The client or close() dropped the connection
+    } catch (IOException | MessagingException e) {
+      throw new IllegalStateException(e);
+    } finally {
+      openConnections.decrementAndGet();
+      openSockets.remove(socket);
+    }
+  }
+
+  private void pause() {
+    long latency = latencyMillis;
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void deliver(String recipient, String data) throws MessagingException {
+    MimeMessage message =
+        new MimeMessage(null, new ByteArrayInputStream(data.getBytes(StandardCharsets.ISO_8859_1)));
+    inbox(recipient).add(message);
+  }
+
+  private static String readData(BufferedReader in) throws IOException {
+    StringBuilder data = new StringBuilder();
+    String line;
+    while ((line = in.readLine()) != null && !line.equals(".")) {
+      // Transparency, RFC 5321 section 4.5.2
+      data.append(line.startsWith(".") ? line.substring(1) : line).append("\r\n");
+    }
+    return data.toString();
+  }
+
+  private static String address(String line) {
+    int start = line.indexOf('<');
+    int end = line.indexOf('>', start + 1);
+    return start >= 0 && end > start
+        ? line.substring(start + 1, end)
+        : line.substring(line.indexOf(':') + 1).trim();
+  }
+
+  private static void reply(OutputStream out, String reply) throws IOException {
+    out.write((reply + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    out.flush();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.tfaMethodsConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.User;
+import hudson.util.Secret;
+import io.jenkins.plugins.twofactor.jenkins.MoTotpReplayGuard;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpEngine;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Covers the clock drift learning of {@link MoTotpConfig#verifyCode}, with the default window of
+ * one step and maximum drift of two steps.
+ */
+public class MoTotpConfigTest {
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void awaitFreshStep() throws InterruptedException {
+        // Keep each test within one time step, so the offsets below stay what they claim to be
+        long remaining = 30_000L - System.currentTimeMillis() % 30_000L;
+        if (remaining < 5_000L) {
+            Thread.sleep(remaining + 100L);
+        }
+    }
+
+    @Test
+    public void learnsDriftAndClampsIt() throws Exception {
+        Enrolled enrolled = enroll("runs-ahead");
+
+        assertTrue(enrolled.verify(1));
+        assertEquals(1, enrolled.config.getDriftSteps());
+        // Beyond the server's window, found around the learned drift
+        assertTrue(enrolled.verify(2));
+        assertEquals(2, enrolled.config.getDriftSteps());
+        assertTrue(enrolled.verify(3));
+        assertEquals(MoTotpConfig.getMaxDriftSteps(), enrolled.config.getDriftSteps());
+        assertFalse(enrolled.verify(5));
+    }
+
+    @Test
+    public void fallsBackToServerWindowWhenDriftIsStale() throws Exception {
+        Enrolled enrolled = enroll("clock-corrected");
+        assertTrue(enrolled.verify(1));
+        assertTrue(enrolled.verify(2));
+        assertEquals(2, enrolled.config.getDriftSteps());
+
+        // The phone's clock was corrected, earlier steps are no replay of the code above
+        MoTotpReplayGuard.forget("clock-corrected");
+        assertTrue(enrolled.verify(-1));
+        assertEquals(-1, enrolled.config.getDriftSteps());
+    }
+
+    @Test
+    public void rejectsCodesOutsideBothWindows() throws Exception {
+        Enrolled enrolled = enroll("wrong-code");
+        assertTrue(enrolled.verify(1));
+
+        MoTotpReplayGuard.forget("wrong-code");
+        assertFalse(enrolled.verify(-2));
+        assertFalse(enrolled.verify(3));
+        assertEquals(1, enrolled.config.getDriftSteps());
+    }
+
+    @Test
+    public void countsAcceptedOffsets() throws Exception {
+        long before = MoTotpConfig.getDriftHistogram().get(-1);
+        Enrolled enrolled = enroll("histogram");
+
+        assertTrue(enrolled.verify(-1));
+
+        assertEquals(before + 1, (long) MoTotpConfig.getDriftHistogram().get(-1));
+    }
+
+    @Test
+    public void newSecretResetsDrift() throws Exception {
+        Enrolled enrolled = enroll("new-device");
+        assertTrue(enrolled.verify(1));
+
+        enrolled.config.setSecretKey(Secret.fromString(MoTotpUtil.generateSecretKey()));
+
+        assertEquals(0, enrolled.config.getDriftSteps());
+    }
+
+    private static Enrolled enroll(String userId) throws Exception {
+        String secret = MoTotpUtil.generateSecretKey();
+        MoTotpConfig config = new MoTotpConfig(Secret.fromString(secret), true);
+        User.getById(userId, true).addProperty(config);
+        return new Enrolled(config, MoTotpEngine.decodeBase32(secret));
+    }
+
+    private static final class Enrolled {
+        final MoTotpConfig config;
+        final byte[] key;
+
+        Enrolled(MoTotpConfig config, byte[] key) {
+            this.config = config;
+            this.key = key;
+        }
+
+        /** Present the code the authenticator shows when its clock is this many steps off. */
+        boolean verify(int offset) {
+            MoTotpEngine engine = MoTotpUtil.getEngine(config.getAlgorithm(), config.getDigits());
+            return config.verifyCode(engine.generate(key, MoTotpUtil.currentTimeStep() + offset));
+        }
+    }
+}
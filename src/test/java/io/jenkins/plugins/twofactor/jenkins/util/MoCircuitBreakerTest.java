@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class MoCircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        MoCircuitBreaker breaker = new MoCircuitBreaker(3, 1, TimeUnit.HOURS);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(MoCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        breaker.recordFailure();
+        assertEquals(MoCircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.isOpen());
+        assertNotEquals(0, breaker.getOpenedAt());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        MoCircuitBreaker breaker = new MoCircuitBreaker(2, 1, TimeUnit.HOURS);
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        assertEquals(MoCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void halfOpenLetsASingleTrialThrough() {
+        // A zero open duration makes the breaker half open as soon as it opens
+        MoCircuitBreaker breaker = new MoCircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+        breaker.recordFailure();
+        assertEquals(MoCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void successfulTrialClosesTheBreaker() {
+        MoCircuitBreaker breaker = new MoCircuitBreaker(1, 0, TimeUnit.MILLISECONDS);
+        breaker.recordFailure();
+        assertTrue(breaker.tryAcquire());
+        breaker.recordSuccess();
+        assertEquals(MoCircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getOpenedAt());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void failedTrialOpensTheBreakerAgain() throws InterruptedException {
+        MoCircuitBreaker breaker = new MoCircuitBreaker(1, 50, TimeUnit.MILLISECONDS);
+        breaker.recordFailure();
+        long firstOpened = breaker.getOpenedAt();
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(60);
+        assertEquals(MoCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        breaker.recordFailure();
+        assertEquals(MoCircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.getOpenedAt() > firstOpened);
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void anyFailureWhileOpenRestartsTheOpenPeriod() {
+        MoCircuitBreaker breaker = new MoCircuitBreaker(5, 0, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure();
+        }
+        assertTrue(breaker.tryAcquire());
+        breaker.recordFailure();
+        // The trial slot is released, so the next trial can go ahead once the period is over
+        assertTrue(breaker.tryAcquire());
+    }
+}
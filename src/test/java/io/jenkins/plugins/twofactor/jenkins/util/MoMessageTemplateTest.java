@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class MoMessageTemplateTest {
+
+    @Test
+    public void substitutesEveryOccurrence() {
+        MoMessageTemplate template = MoMessageTemplate.compile("Hi $username, your code is $otp. $otp expires soon.",
+                "$username", "$otp");
+        assertEquals("Hi alice, your code is 123456. 123456 expires soon.", template.render("alice", "123456"));
+    }
+
+    @Test
+    public void keepsTextWithoutPlaceholders() {
+        assertEquals("no placeholders", MoMessageTemplate.compile("no placeholders", "$otp").render("1"));
+        assertEquals("", MoMessageTemplate.compile(null, "$otp").render("1"));
+        assertEquals("123456", MoMessageTemplate.compile("$otp", "$otp").render("123456"));
+    }
+
+    @Test
+    public void leavesUnknownDollarSignsAlone() {
+        MoMessageTemplate template = MoMessageTemplate.compile("$5 off, $ $$otp $other", "$otp");
+        assertEquals("$5 off, $ $42 $other", template.render("42"));
+    }
+
+    @Test
+    public void firstListedPlaceholderWinsAtTheSamePosition() {
+        assertEquals("alice", MoMessageTemplate.compile("$username", "$username", "$user").render("alice", "bob"));
+        assertEquals("bobname", MoMessageTemplate.compile("$username", "$user", "$username").render("bob", "alice"));
+    }
+
+    @Test
+    public void doesNotExpandPlaceholdersInsideValues() {
+        MoMessageTemplate template = MoMessageTemplate.compile("$username: $otp", "$username", "$otp");
+        assertEquals("$otp: 1", template.render("$otp", "1"));
+    }
+
+    @Test
+    public void escapesValuesButNotTheTemplateInHtml() {
+        MoMessageTemplate template = MoMessageTemplate.compile("<p>Hi <b>$username</b></p>", "$username");
+        assertEquals("<p>Hi <b>&lt;script&gt;&amp;&quot;&#39;</b></p>", template.renderHtml("<script>&\"'"));
+        assertEquals("<p>Hi <b><i>x</i></b></p>", template.render("<i>x</i>"));
+        assertEquals("<p>Hi <b>null</b></p>", template.renderHtml((String) null));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class MoOtpLedgerTest {
+
+    private final MoOtpLedger ledger = new MoOtpLedger(5, TimeUnit.MINUTES, 3);
+
+    @Test
+    public void acceptsARecordedCodeOnce() {
+        ledger.record("alice", "123456");
+        assertTrue(ledger.hasOutstanding("alice"));
+        assertTrue(ledger.consume("alice", "123456"));
+        assertFalse(ledger.hasOutstanding("alice"));
+        assertFalse(ledger.consume("alice", "123456"));
+    }
+
+    @Test
+    public void rejectsWrongCodesAndOtherUsers() {
+        ledger.record("alice", "123456");
+        assertFalse(ledger.consume("alice", "654321"));
+        assertFalse(ledger.consume("alice", null));
+        assertFalse(ledger.consume("bob", "123456"));
+        // A wrong guess does not use up the real code
+        assertTrue(ledger.consume("alice", "123456"));
+    }
+
+    @Test
+    public void usingOneCodeInvalidatesTheOthers() {
+        ledger.record("alice", "111111");
+        ledger.record("alice", "222222");
+        assertTrue(ledger.consume("alice", "222222"));
+        assertFalse(ledger.consume("alice", "111111"));
+    }
+
+    @Test
+    public void dropsTheOldestCodeBeyondTheBound() {
+        ledger.record("alice", "111111");
+        ledger.record("alice", "222222");
+        ledger.record("alice", "333333");
+        ledger.record("alice", "444444");
+        assertFalse(ledger.consume("alice", "111111"));
+        assertTrue(ledger.consume("alice", "333333"));
+    }
+
+    @Test
+    public void expiredCodesAreRejectedAndEvicted() {
+        MoOtpLedger expiring = new MoOtpLedger(0, TimeUnit.MILLISECONDS, 3);
+        expiring.record("alice", "123456");
+        expiring.record("bob", "123456");
+        assertFalse(expiring.hasOutstanding("alice"));
+        assertFalse(expiring.consume("alice", "123456"));
+        assertEquals(2, expiring.size());
+        assertEquals(2, expiring.evictExpired());
+        assertEquals(0, expiring.size());
+    }
+
+    @Test
+    public void evictionKeepsUsersWithLiveCodes() {
+        ledger.record("alice", "123456");
+        assertEquals(0, ledger.evictExpired());
+        assertTrue(ledger.hasOutstanding("alice"));
+    }
+
+    @Test
+    public void clearDropsEverythingForTheUser() {
+        ledger.record("alice", "123456");
+        assertTrue(ledger.clear("alice"));
+        assertFalse(ledger.clear("alice"));
+        assertFalse(ledger.consume("alice", "123456"));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.zxing.common.BitMatrix;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+public class MoQrPngRendererTest {
+
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    @Test
+    public void decodesToTheSamePixels() throws Exception {
+        // A width that is not a multiple of eight checks the padding of each row
+        BitMatrix matrix = new BitMatrix(13, 4);
+        matrix.set(0, 0);
+        matrix.set(7, 0);
+        matrix.set(8, 0);
+        matrix.set(12, 0);
+        matrix.setRegion(0, 2, 13, 1);
+        matrix.set(5, 3);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(MoQrPngRenderer.render(matrix)));
+
+        assertEquals(13, image.getWidth());
+        assertEquals(4, image.getHeight());
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 13; x++) {
+                assertEquals("pixel " + x + "," + y, matrix.get(x, y) ? BLACK : WHITE, image.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void rendersAnEncodedQrCode() throws Exception {
+        byte[] png = MoTotpUtil.generateQRCodeImage("JBSWY3DPEHPK3PXP", "alice", "Jenkins");
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+
+        assertEquals(image.getWidth(), image.getHeight());
+        // White quiet zone, then the dark corner of the top left finder pattern on the diagonal
+        assertEquals(WHITE, image.getRGB(0, 0));
+        int corner = 0;
+        while (image.getRGB(corner, corner) == WHITE) {
+            corner++;
+        }
+        assertEquals(BLACK, image.getRGB(corner, corner));
+    }
+}
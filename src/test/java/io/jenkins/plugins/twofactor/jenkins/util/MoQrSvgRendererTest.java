@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class MoQrSvgRendererTest {
+
+    private static final Pattern RUN = Pattern.compile("M(\\d+) (\\d+)h(\\d+)v1h-(\\d+)z");
+
+    @Test
+    public void scalesTheModuleGridToTheRequestedSize() {
+        String svg = MoQrSvgRenderer.render(new BitMatrix(21, 21), 300);
+        assertTrue(svg, svg.startsWith("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 21 21\""
+                + " width=\"300\" height=\"300\""));
+        assertTrue(svg, svg.endsWith("\"/></svg>"));
+    }
+
+    @Test
+    public void drawsEachRunOfDarkModulesOnce() {
+        BitMatrix matrix = new BitMatrix(5, 2);
+        matrix.set(0, 0);
+        matrix.set(1, 0);
+        matrix.set(3, 0);
+        matrix.setRegion(0, 1, 5, 1);
+        String svg = MoQrSvgRenderer.render(matrix, 50);
+        assertTrue(svg, svg.contains("d=\"M0 0h2v1h-2zM3 0h1v1h-1zM0 1h5v1h-5z\""));
+    }
+
+    @Test
+    public void emptyMatrixHasAnEmptyPath() {
+        assertTrue(MoQrSvgRenderer.render(new BitMatrix(3, 3), 30).contains("d=\"\""));
+    }
+
+    @Test
+    public void pathReproducesAnEncodedQrCode() throws Exception {
+        BitMatrix matrix = new QRCodeWriter().encode(
+                "otpauth://totp/Jenkins:alice?secret=JBSWY3DPEHPK3PXP&issuer=Jenkins&algorithm=SHA1&digits=6&period=30",
+                BarcodeFormat.QR_CODE, 0, 0);
+        String svg = MoQrSvgRenderer.render(matrix, 300);
+
+        BitMatrix drawn = new BitMatrix(matrix.getWidth(), matrix.getHeight());
+        Matcher run = RUN.matcher(svg);
+        while (run.find()) {
+            int x = Integer.parseInt(run.group(1));
+            int y = Integer.parseInt(run.group(2));
+            int width = Integer.parseInt(run.group(3));
+            assertEquals(width, Integer.parseInt(run.group(4)));
+            for (int i = x; i < x + width; i++) {
+                assertTrue("modules are drawn once", !drawn.get(i, y));
+                drawn.set(i, y);
+            }
+        }
+        assertEquals(matrix, drawn);
+    }
+}
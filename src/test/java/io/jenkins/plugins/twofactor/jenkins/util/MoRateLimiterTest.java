@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class MoRateLimiterTest {
+
+    @Test
+    public void allowsABurstUpToTheCapacityPerKey() {
+        MoRateLimiter limiter = new MoRateLimiter(3, 1, TimeUnit.HOURS);
+        assertTrue(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("bob"));
+        assertEquals(1, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void refillsOneTokenPerInterval() throws InterruptedException {
+        MoRateLimiter limiter = new MoRateLimiter(2, 50, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+        Thread.sleep(60);
+        assertTrue(limiter.tryAcquire("alice"));
+    }
+
+    @Test
+    public void refillStopsAtTheCapacity() throws InterruptedException {
+        MoRateLimiter limiter = new MoRateLimiter(2, 20, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.tryAcquire("alice"));
+        Thread.sleep(200);
+        // Ten intervals passed, but the bucket never holds more than two tokens
+        assertTrue(limiter.tryAcquire("alice"));
+        assertTrue(limiter.tryAcquire("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+    }
+
+    @Test
+    public void evictsOnlyFullyRefilledBuckets() throws InterruptedException {
+        MoRateLimiter draining = new MoRateLimiter(2, 1, TimeUnit.HOURS);
+        draining.tryAcquire("alice");
+        assertEquals(0, draining.evictIdle());
+        assertFalse(draining.evictIfIdle("alice"));
+        assertEquals(1, draining.size());
+
+        MoRateLimiter refilled = new MoRateLimiter(2, 1, TimeUnit.MILLISECONDS);
+        refilled.tryAcquire("alice");
+        refilled.tryAcquire("bob");
+        Thread.sleep(10);
+        assertTrue(refilled.evictIfIdle("alice"));
+        assertFalse(refilled.evictIfIdle("alice"));
+        assertEquals(1, refilled.evictIdle());
+        assertEquals(0, refilled.size());
+    }
+
+    @Test
+    public void evictingAnIdleBucketDoesNotResetAThrottledKey() {
+        MoRateLimiter limiter = new MoRateLimiter(1, 1, TimeUnit.HOURS);
+        assertTrue(limiter.tryAcquire("alice"));
+        limiter.evictIdle();
+        assertFalse(limiter.evictIfIdle("alice"));
+        assertFalse(limiter.tryAcquire("alice"));
+    }
+}
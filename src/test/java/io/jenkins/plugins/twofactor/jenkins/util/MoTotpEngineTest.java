@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Checks {@link MoTotpEngine} against the test vectors of RFC 6238 Appendix B.
+ */
+public class MoTotpEngineTest {
+
+    private static final long[] TIMES = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+
+    private static final byte[] SHA1_KEY = ascii("12345678901234567890");
+    private static final byte[] SHA256_KEY = ascii("12345678901234567890123456789012");
+    private static final byte[] SHA512_KEY =
+            ascii("1234567890123456789012345678901234567890123456789012345678901234");
+
+    @Test
+    public void generatesSha1Vectors() {
+        assertVectors(MoTotpEngine.Algorithm.SHA1, SHA1_KEY,
+                94287082, 7081804, 14050471, 89005924, 69279037, 65353130);
+    }
+
+    @Test
+    public void generatesSha256Vectors() {
+        assertVectors(MoTotpEngine.Algorithm.SHA256, SHA256_KEY,
+                46119246, 68084774, 67062674, 91819424, 90698825, 77737706);
+    }
+
+    @Test
+    public void generatesSha512Vectors() {
+        assertVectors(MoTotpEngine.Algorithm.SHA512, SHA512_KEY,
+                90693936, 25091201, 99943326, 93441116, 38618901, 47863826);
+    }
+
+    @Test
+    public void sixDigitCodesAreTheLowDigitsOfTheVectors() {
+        MoTotpEngine engine = engine(MoTotpEngine.Algorithm.SHA1, 6, 1);
+        assertEquals(287082, engine.generate(SHA1_KEY, engine.timeStep(59_000L)));
+        assertEquals(81804, engine.generate(SHA1_KEY, engine.timeStep(1111111109_000L)));
+    }
+
+    @Test
+    public void verifiesWithinTheWindowOnly() {
+        MoTotpEngine engine = engine(MoTotpEngine.Algorithm.SHA1, 8, 1);
+        long step = engine.timeStep(1111111109_000L);
+        int code = 7081804;
+        assertEquals(step, engine.verify(SHA1_KEY, code, 1111111109_000L));
+        assertEquals(step, engine.verify(SHA1_KEY, code, (step + 1) * 30_000L));
+        assertEquals(step, engine.verify(SHA1_KEY, code, (step - 1) * 30_000L));
+        assertEquals(MoTotpEngine.NO_MATCH, engine.verify(SHA1_KEY, code, (step + 2) * 30_000L));
+        assertEquals(step, engine.verify(SHA1_KEY, code, step + 2, 2));
+    }
+
+    @Test
+    public void skipsStepsAlreadyChecked() {
+        MoTotpEngine engine = engine(MoTotpEngine.Algorithm.SHA1, 8, 1);
+        long step = engine.timeStep(1111111109_000L);
+        int code = 7081804;
+        assertEquals(MoTotpEngine.NO_MATCH, engine.verify(SHA1_KEY, code, step, 1, step + 1, 1));
+        assertEquals(MoTotpEngine.NO_MATCH, engine.verify(SHA1_KEY, code, step + 1, 1, step, 0));
+        assertEquals(step, engine.verify(SHA1_KEY, code, step + 1, 1, step + 2, 1));
+        assertEquals(step, engine.verify(SHA1_KEY, code, step - 1, 1, step - 2, 0));
+    }
+
+    @Test
+    public void rejectsCodesWithTooManyDigits() {
+        MoTotpEngine engine = engine(MoTotpEngine.Algorithm.SHA1, 6, 1);
+        assertEquals(MoTotpEngine.NO_MATCH, engine.verify(SHA1_KEY, 94287082, 59_000L));
+        assertEquals(MoTotpEngine.NO_MATCH, engine.verify(SHA1_KEY, -1, 59_000L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedDigits() {
+        engine(MoTotpEngine.Algorithm.SHA1, 7, 1);
+    }
+
+    @Test
+    public void decodesBase32() {
+        // RFC 4648 section 10
+        assertArrayEquals(ascii("foobar"), MoTotpEngine.decodeBase32("MZXW6YTBOI======"));
+        assertArrayEquals(ascii("foobar"), MoTotpEngine.decodeBase32("mzxw 6ytb-oi"));
+        assertArrayEquals(SHA1_KEY, MoTotpEngine.decodeBase32("GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidBase32() {
+        MoTotpEngine.decodeBase32("MZXW1");
+    }
+
+    private static void assertVectors(MoTotpEngine.Algorithm algorithm, byte[] key, int... expected) {
+        MoTotpEngine engine = engine(algorithm, 8, 0);
+        for (int i = 0; i < TIMES.length; i++) {
+            long step = engine.timeStep(TIMES[i] * 1000L);
+            assertEquals(algorithm + " at " + TIMES[i], expected[i], engine.generate(key, step));
+            assertEquals(algorithm + " at " + TIMES[i], step, engine.verify(key, expected[i], TIMES[i] * 1000L));
+        }
+    }
+
+    private static MoTotpEngine engine(MoTotpEngine.Algorithm algorithm, int digits, int windowSteps) {
+        return new MoTotpEngine(algorithm, digits, 30, TimeUnit.SECONDS, windowSteps);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
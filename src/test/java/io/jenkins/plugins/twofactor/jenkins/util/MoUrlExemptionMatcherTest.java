@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package io.jenkins.plugins.twofactor.jenkins.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class MoUrlExemptionMatcherTest {
+
+    @Test
+    public void matchesFragmentsAnywhereInThePath() {
+        MoUrlExemptionMatcher matcher = MoUrlExemptionMatcher.compile("/login", "/static/");
+        assertTrue(matcher.matches("/login"));
+        assertTrue(matcher.matches("/jenkins/login?from=%2F"));
+        assertTrue(matcher.matches("/static/abc123/css/style.css"));
+        assertFalse(matcher.matches("/logi"));
+        assertFalse(matcher.matches("/job/static"));
+        assertFalse(matcher.matches(""));
+        assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void matchesFragmentsThatArePrefixesOfEachOther() {
+        MoUrlExemptionMatcher matcher = MoUrlExemptionMatcher.compile("/log", "/logout");
+        assertTrue(matcher.matches("/log"));
+        assertTrue(matcher.matches("/logout"));
+        assertTrue(matcher.matches("/lo/log"));
+        assertFalse(matcher.matches("/lo"));
+    }
+
+    @Test
+    public void matchesFragmentsThatOverlap() {
+        // "abcd" fails after "abc" and has to fall back into "bce" without rescanning
+        MoUrlExemptionMatcher matcher = MoUrlExemptionMatcher.compile("abcd", "bce", "ce");
+        assertTrue(matcher.matches("xabce"));
+        assertTrue(matcher.matches("abcd"));
+        assertFalse(matcher.matches("abcx"));
+
+        // A fragment contained in another one is found through the suffix of the longer one
+        MoUrlExemptionMatcher nested = MoUrlExemptionMatcher.compile("/securityRealm/finishLogin", "Login");
+        assertTrue(nested.matches("/securityRealm/finishLog/Login"));
+        assertTrue(nested.matches("/securityRealm/finishLogin"));
+    }
+
+    @Test
+    public void handlesCharactersOutsideAscii() {
+        MoUrlExemptionMatcher matcher = MoUrlExemptionMatcher.compile("/caf\u00e9", "/\u65e5\u672c");
+        assertTrue(matcher.matches("/menu/caf\u00e9/1"));
+        assertTrue(matcher.matches("/\u65e5\u672c\u8a9e"));
+        assertFalse(matcher.matches("/cafe"));
+        assertFalse(matcher.matches("/\u65e5\u8a9e"));
+    }
+
+    @Test
+    public void ignoresBlankAndDuplicateFragments() {
+        MoUrlExemptionMatcher matcher = MoUrlExemptionMatcher.compile(Arrays.asList(" /a ", "/a", "", "  ", null, "/b"));
+        assertEquals(Arrays.asList("/a", "/b"), matcher.getPatterns());
+        assertFalse(MoUrlExemptionMatcher.compile(Arrays.asList("", " ")).matches("/anything"));
+    }
+
+    @Test
+    public void agreesWithContains() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            List<String> fragments = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(6); i++) {
+                fragments.add(randomString(random, 1 + random.nextInt(4)));
+            }
+            MoUrlExemptionMatcher matcher = MoUrlExemptionMatcher.compile(fragments);
+            for (int i = 0; i < 50; i++) {
+                String path = randomString(random, random.nextInt(12));
+                boolean expected = fragments.stream().anyMatch(path::contains);
+                assertEquals(fragments + " in " + path, expected, matcher.matches(path));
+            }
+        }
+    }
+
+    // A small alphabet makes overlapping fragments common
+    private static String randomString(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append("ab/\u00e9".charAt(random.nextInt(4)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jmh.benchmarks;
+
+import io.jenkins.plugins.twofactor.jenkins.MoFilter;
+import io.jenkins.plugins.twofactor.jenkins.MoFilterFixture;
+import io.jenkins.plugins.twofactor.jenkins.MoServletStubs;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Overhead of {@link MoFilter} on anonymous traffic such as the login page and public read-only
+ * views, against calling the filter chain directly. Anonymous requests used to reach the redirect
+ * lookup and be let through by the filter's catch block, paying for a NullPointerException each.
+ */
+@JmhBenchmark
+public class MoAnonymousFilterBenchmark {
+
+  public static class JenkinsState extends JmhBenchmarkState {
+    @Override
+    public void setup() {
+      MoFilterFixture.enableTfa(0);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class RequestState {
+    @Param({"/login", "/job/public/lastBuild/"})
+    public String path;
+
+    final MoFilter filter = new MoFilter();
+    final MoServletStubs.Response response = new MoServletStubs.Response();
+    final MoServletStubs.Chain chain = new MoServletStubs.Chain();
+    MoServletStubs.Request request;
+
+    @Setup
+    public void setup() {
+      request = new MoServletStubs.Request("/jenkins" + path, path);
+    }
+  }
+
+  @Benchmark
+  public void anonymousRequest(JenkinsState jenkins, RequestState state, Blackhole blackhole)
+      throws IOException, ServletException {
+    state.filter.doFilter(state.request, state.response, state.chain);
+    blackhole.consume(state.chain.getPassed());
+  }
+
+  @Benchmark
+  public void withoutFilter(JenkinsState jenkins, RequestState state, Blackhole blackhole)
+      throws IOException, ServletException {
+    state.chain.doFilter(state.request, state.response);
+    blackhole.consume(state.chain.getPassed());
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jmh.benchmarks;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import io.jenkins.plugins.twofactor.jenkins.MoFilter;
+import io.jenkins.plugins.twofactor.jenkins.MoFilterFixture;
+import io.jenkins.plugins.twofactor.jenkins.MoServletStubs;
+import io.jenkins.plugins.twofactor.jenkins.MoTfaRedirectCache;
+import java.io.IOException;
+import javax.servlet.ServletException;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of {@link MoFilter#doFilter} for a logged in user, by number of admin configured URL
+ * exemptions, number of 2FA methods the user configured, whether the session already passed
+ * 2FA, and whether the redirect decision is cached. Verified sessions are let through before
+ * the redirect decision is needed, so the cache only matters for unverified ones.
+ */
+@JmhBenchmark
+public class MoFilterBenchmark {
+  static final String USER_ID = "bench-user";
+
+  public static class JenkinsState extends JmhBenchmarkState {
+    @Param({"0", "100"})
+    public int customExemptUrls;
+
+    @Param({"1", "3"})
+    public int configuredMethods;
+
+    @Override
+    public void setup() throws Exception {
+      MoFilterFixture.enableTfa(customExemptUrls);
+      try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+        MoFilterFixture.createUser(USER_ID, configuredMethods);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class RequestState {
+    @Param({"true", "false"})
+    public boolean verified;
+
+    @Param({"warm", "cold"})
+    public String redirectCache;
+
+    final MoFilter filter = new MoFilter();
+    final MoServletStubs.Response response = new MoServletStubs.Response();
+    final MoServletStubs.Chain chain = new MoServletStubs.Chain();
+    MoServletStubs.Request request;
+    boolean cold;
+    private ACLContext context;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+      request = new MoServletStubs.Request("/jenkins/job/example/", "/job/example/");
+      request.withSession(
+          verified
+              ? MoFilterFixture.verifiedSession(USER_ID)
+              : new MoServletStubs.Session("unverified-" + USER_ID));
+      cold = "cold".equals(redirectCache);
+      // Thread scoped setup runs on the benchmark thread, which is where the filter reads it
+      context = ACL.as2(MoFilterFixture.authenticationOf(USER_ID));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+      context.close();
+    }
+  }
+
+  @Benchmark
+  public void loggedInUser(JenkinsState jenkins, RequestState state, Blackhole blackhole)
+      throws IOException, ServletException {
+    if (state.cold) {
+      MoTfaRedirectCache.invalidate(USER_ID);
+    }
+    state.filter.doFilter(state.request, state.response, state.chain);
+    blackhole.consume(state.chain.getPassed());
+  }
+}
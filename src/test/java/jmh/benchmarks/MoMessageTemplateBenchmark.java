@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jmh.benchmarks;
+
+import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdvanceSettingsConstants.DEFAULT_OTP_EMAIL_SUBJECT;
+import static io.jenkins.plugins.twofactor.constants.MoGlobalConfigConstant.AdvanceSettingsConstants.DEFAULT_OTP_EMAIL_TEMPLATE;
+
+import io.jenkins.plugins.twofactor.jenkins.MoTfaPolicySnapshot;
+import io.jenkins.plugins.twofactor.jenkins.util.MoMessageTemplate;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of building the OTP email as MoOtpOverEmailAuth does, against the chained
+ * {@link String#replace} it used before the templates were compiled.
+ */
+@JmhBenchmark
+public class MoMessageTemplateBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class TemplateState {
+    String subjectText;
+    String templateText;
+    MoMessageTemplate subject;
+    MoMessageTemplate template;
+    String userId = "bench-user";
+    String otp = "123456";
+
+    @Setup
+    public void setup() {
+      subjectText = DEFAULT_OTP_EMAIL_SUBJECT.getValue();
+      templateText = DEFAULT_OTP_EMAIL_TEMPLATE.getValue();
+      subject = MoMessageTemplate.compile(subjectText, MoTfaPolicySnapshot.OTP_EMAIL_PLACEHOLDERS);
+      template = MoMessageTemplate.compile(templateText, MoTfaPolicySnapshot.OTP_EMAIL_PLACEHOLDERS);
+    }
+  }
+
+  @Benchmark
+  public void compiledTemplate(TemplateState state, Blackhole blackhole) {
+    blackhole.consume(state.subject.render(state.userId, state.otp));
+    blackhole.consume(state.template.renderHtml(state.userId, state.otp));
+  }
+
+  @Benchmark
+  public void stringReplace(TemplateState state, Blackhole blackhole) {
+    blackhole.consume(
+        state.subjectText.replace("$username", state.userId).replace("$otp", state.otp));
+    blackhole.consume(
+        state.templateText.replace("$username", state.userId).replace("$otp", state.otp));
+  }
+}
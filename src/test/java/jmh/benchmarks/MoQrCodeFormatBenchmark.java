@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jmh.benchmarks;
+
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of rendering the enrollment QR code as a PNG of every pixel, against rendering it
+ * as SVG from the module matrix, both without AWT. The size of each response is reported as the
+ * {@code responseBytes} secondary result.
+ */
+@JmhBenchmark
+public class MoQrCodeFormatBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class QrState {
+    String secret;
+
+    @Setup
+    public void setup() {
+      secret = MoTotpUtil.generateSecretKey();
+    }
+  }
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Size {
+    public long responseBytes;
+  }
+
+  @Benchmark
+  public byte[] png(QrState state, Size size) {
+    byte[] image = MoTotpUtil.generateQRCodeImage(state.secret, "bench-user", "Jenkins");
+    size.responseBytes = image.length;
+    return image;
+  }
+
+  @Benchmark
+  public byte[] svg(QrState state, Size size) {
+    byte[] image = MoTotpUtil.generateQRCodeSvg(state.secret, "bench-user", "Jenkins");
+    size.responseBytes = image.length;
+    return image;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2023
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package jmh.benchmarks;
+
+import com.warrenstrange.googleauth.GoogleAuthenticator;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpEngine;
+import io.jenkins.plugins.twofactor.jenkins.util.MoTotpUtil;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of checking a TOTP code, from the stored base32 secret and from a key that is already
+ * decoded as {@link io.jenkins.plugins.twofactor.jenkins.MoTotpKeyCache} holds it, compared with
+ * the {@link GoogleAuthenticator} library check it replaced, and of rendering the enrollment QR
+ * code as a data URI. A wrong code is used so that every step of
+ * the window is computed, which is the worst case.
+ */
+@JmhBenchmark
+public class MoTotpBenchmark {
+
+  @State(Scope.Thread)
+  public static class TotpState {
+    String secret;
+    byte[] key;
+    int wrongCode;
+    long currentStep;
+    // Same window of one step either side as MoTotpUtil
+    final GoogleAuthenticator googleAuthenticator = new GoogleAuthenticator();
+
+    @Setup
+    public void setup() {
+      secret = MoTotpUtil.generateSecretKey();
+      key = MoTotpEngine.decodeBase32(secret);
+      currentStep = MoTotpUtil.currentTimeStep();
+      MoTotpEngine engine =
+          MoTotpUtil.getEngine(MoTotpUtil.getDefaultAlgorithm(), MoTotpUtil.getDefaultDigits());
+      int valid = engine.generate(key, currentStep);
+      wrongCode = (valid + 1) % 1_000_000;
+    }
+  }
+
+  @Benchmark
+  public boolean validateFromSecret(TotpState state) {
+    return MoTotpUtil.validateTotpCode(state.secret, state.wrongCode);
+  }
+
+  @Benchmark
+  public long validateFromDecodedKey(TotpState state) {
+    return MoTotpUtil.matchTotpCode(state.key, state.wrongCode, state.currentStep);
+  }
+
+  @Benchmark
+  public boolean googleAuthenticatorAuthorize(TotpState state) {
+    return state.googleAuthenticator.authorize(state.secret, state.wrongCode);
+  }
+
+  @Benchmark
+  public String qrCodeDataUri(TotpState state) {
+    return MoTotpUtil.generateQRCodeDataUri(state.secret, "bench-user", "Jenkins");
+  }
+}